@@ -14,6 +14,19 @@ from datetime import datetime
 # Database file
 DB_FILE = 'stomp_server.db'
 
+# Separators of the prepared statement requests:
+#   PREPARE US id US sql
+#   EXEC US id RS row RS row ...   (row = param US param ...)
+# and of the rows answering a query:
+#   QUERY US sql  ->  SUCCESS RS row RS row ...   (row = column US column ..., NULL as a lone SUB)
+US = '\x1f'
+RS = '\x1e'
+SUB = '\x1a'
+
+# One connection shared by all client threads, opened by start_server
+db_conn = None
+db_lock = threading.Lock()
+
 def init_database():
     """Initialize the database with required tables"""
     conn = sqlite3.connect(DB_FILE)
@@ -58,24 +71,65 @@ def init_database():
 def execute_sql(sql_command):
     """Execute SQL command and return result"""
     try:
-        conn = sqlite3.connect(DB_FILE)
-        cursor = conn.cursor()
-        
-        # Execute the SQL command
-        cursor.execute(sql_command)
-        
-        # Check if it's a SELECT query
-        if sql_command.strip().upper().startswith('SELECT'):
-            results = cursor.fetchall()
-            conn.close()
-            return f"SUCCESS:{len(results)}|" + "|".join([str(row) for row in results])
-        else:
-            # For INSERT, UPDATE, DELETE
-            conn.commit()
-            affected_rows = cursor.rowcount
-            conn.close()
-            return f"SUCCESS:{affected_rows}"
-            
+        with db_lock:
+            cursor = db_conn.cursor()
+
+            # Execute the SQL command
+            cursor.execute(sql_command)
+
+            # Check if it's a SELECT query
+            if sql_command.strip().upper().startswith('SELECT'):
+                results = cursor.fetchall()
+                return f"SUCCESS:{len(results)}|" + "|".join([str(row) for row in results])
+            else:
+                # For INSERT, UPDATE, DELETE
+                db_conn.commit()
+                return f"SUCCESS:{cursor.rowcount}"
+
+    except sqlite3.Error as e:
+        return f"ERROR:{str(e)}"
+    except Exception as e:
+        return f"ERROR:{str(e)}"
+
+def execute_prepared(request, prepared):
+    """Handle PREPARE and EXEC requests, prepared maps statement ids to SQL for one client"""
+    try:
+        if request.startswith('PREPARE' + US):
+            _, stmt_id, sql = request.split(US, 2)
+            prepared[stmt_id] = sql
+            return "SUCCESS:0"
+
+        head, *rows = request.split(RS)
+        stmt_id = head.split(US, 1)[1]
+        sql = prepared.get(stmt_id)
+        if sql is None:
+            return f"ERROR:Unknown statement {stmt_id}"
+        params = [row.split(US) for row in rows]
+
+        with db_lock:
+            # One transaction for the whole batch
+            cursor = db_conn.cursor()
+            try:
+                cursor.executemany(sql, params)
+                db_conn.commit()
+            except sqlite3.Error:
+                db_conn.rollback()
+                raise
+            return f"SUCCESS:{cursor.rowcount}"
+
+    except sqlite3.Error as e:
+        return f"ERROR:{str(e)}"
+    except Exception as e:
+        return f"ERROR:{str(e)}"
+
+def execute_query(request):
+    """Handle a QUERY request, answering with separator delimited rows rather than Python tuples"""
+    try:
+        sql = request.split(US, 1)[1]
+        with db_lock:
+            rows = db_conn.cursor().execute(sql).fetchall()
+        return "SUCCESS" + "".join(
+            RS + US.join(SUB if v is None else str(v) for v in row) for row in rows)
     except sqlite3.Error as e:
         return f"ERROR:{str(e)}"
     except Exception as e:
@@ -85,35 +139,37 @@ def handle_client(client_socket, addr):
     """Handle client connection"""
     print(f"Client connected from {addr}")
     
+    prepared = {}
     try:
+        # requests may be pipelined, so one read can hold several of them or part of one
+        data = b''
         while True:
-            # Receive SQL command (terminated by null character)
-            data = b''
-            while True:
-                chunk = client_socket.recv(1024)
-                if not chunk:
-                    break
-                data += chunk
-                if b'\0' in data:
-                    break
-            
-            if not data:
-                break
-                
-            # Remove null terminator and decode
-            sql_command = data.rstrip(b'\0').decode('utf-8')
-            
-            if not sql_command:
+            chunk = client_socket.recv(4096)
+            if not chunk:
                 break
-                
-            print(f"Executing SQL: {sql_command[:100]}...")
-            
-            # Execute SQL and get result
-            result = execute_sql(sql_command)
-            
-            # Send result back with null terminator
-            client_socket.sendall((result + '\0').encode('utf-8'))
-            
+            data += chunk
+
+            while b'\0' in data:
+                request, _, data = data.partition(b'\0')
+                sql_command = request.decode('utf-8')
+
+                if not sql_command:
+                    # still answered, the client matches responses to requests in order
+                    result = "ERROR:Empty query"
+                else:
+                    print(f"Executing SQL: {sql_command[:100]}...")
+
+                    # Execute SQL and get result
+                    if sql_command.startswith('PREPARE' + US) or sql_command.startswith('EXEC' + US):
+                        result = execute_prepared(sql_command, prepared)
+                    elif sql_command.startswith('QUERY' + US):
+                        result = execute_query(sql_command)
+                    else:
+                        result = execute_sql(sql_command)
+
+                # Send result back with null terminator
+                client_socket.sendall((result + '\0').encode('utf-8'))
+
     except Exception as e:
         print(f"Error handling client {addr}: {e}")
     finally:
@@ -140,6 +196,9 @@ def start_server(host='127.0.0.1', port=7778):
 
     # Initialize database
     init_database()
+
+    global db_conn
+    db_conn = sqlite3.connect(DB_FILE, check_same_thread=False)
     
     # Create server socket
     server_socket = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
@@ -168,6 +227,7 @@ def start_server(host='127.0.0.1', port=7778):
         print("\nShutting down SQL server...")
     finally:
         server_socket.close()
+        db_conn.close()
 
 if __name__ == '__main__':
     port = 7778
@@ -0,0 +1,72 @@
+package bgu.spl.net.impl.data;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Routing a SEND in a {@link ChannelRegistry} holding many pattern subscriptions, one per connection on
+ * /worldcup/group_N/*, besides a few watching /worldcup/**. subscribers looks up who gets a message,
+ * isSubscribed checks the sender. Neither should grow with the number of patterns. unmatchedSubscribers
+ * looks up a large channel no pattern matches, which should not grow with its subscribers either.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelRegistryBenchmark {
+
+    private static final int WATCHERS = 8;
+    private static final String DESTINATION = "/worldcup/group_7/germany_japan";
+    private static final String UNMATCHED = "/friendlies/brazil_italy";
+    private static final int UNMATCHED_SUBSCRIBERS = 10_000;
+
+    @Param({"0", "100", "10000"})
+    public int patterns;
+
+    private ChannelRegistry registry;
+
+    @Setup
+    public void setup() {
+        registry = new ChannelRegistry();
+        for (int id = 0; id < WATCHERS; id++) {
+            registry.add(DESTINATION, id);
+        }
+        for (int i = 0; i < patterns; i++) {
+            registry.add("/worldcup/group_" + i + "/*", WATCHERS + i);
+        }
+        if (patterns > 0) {
+            registry.add("/worldcup/**", 0);
+        }
+        for (int id = 0; id < UNMATCHED_SUBSCRIBERS; id++) {
+            registry.add(UNMATCHED, id);
+        }
+    }
+
+    @Benchmark
+    public Set<Integer> subscribers() {
+        return registry.subscribersOf(DESTINATION);
+    }
+
+    @Benchmark
+    public Set<Integer> unmatchedSubscribers() {
+        return registry.subscribersOf(UNMATCHED);
+    }
+
+    @Benchmark
+    public boolean isSubscribed() {
+        return registry.matchesPattern(DESTINATION, WATCHERS + 7);
+    }
+}
@@ -0,0 +1,68 @@
+package bgu.spl.net.impl.data;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Database.login on a database whose SqlClient is a {@link StubSqlClient}, so only the in-memory work and
+ * queueing the audit records is measured. existingUser logs a known user in and out again,
+ * newUser registers a user never seen before. Every iteration starts from an empty database.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatabaseLoginBenchmark {
+
+    private static final int USERS = 1024;
+
+    private StubSqlClient sqlClient;
+    private Database database;
+    private String[] names;
+    private int next;
+    private long newUsers;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        sqlClient = new StubSqlClient();
+        database = new Database(sqlClient);
+        names = new String[USERS];
+        for (int i = 0; i < USERS; i++) {
+            names[i] = "user" + i;
+            database.login(i, names[i], "p");
+            database.logout(i);
+        }
+    }
+
+    @Benchmark
+    public LoginStatus existingUser() {
+        int i = next++ & (USERS - 1);
+        LoginStatus status = database.login(i, names[i], "p");
+        database.logout(i);
+        return status;
+    }
+
+    @Benchmark
+    public LoginStatus newUser() {
+        long id = newUsers++;
+        return database.login(USERS + (int) id, "new" + id, "p");
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        database.getAuditLog().close();
+    }
+}
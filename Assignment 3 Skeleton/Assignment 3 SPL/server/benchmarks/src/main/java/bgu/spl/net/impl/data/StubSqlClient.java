@@ -0,0 +1,37 @@
+package bgu.spl.net.impl.data;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A SqlClient that never opens a socket: every request succeeds at once and queries have no rows.
+ * Takes the SQL round trip out of what a benchmark measures.
+ */
+public class StubSqlClient extends SqlClient {
+
+    private final AtomicLong requests = new AtomicLong();
+
+    public StubSqlClient() {
+        super("127.0.0.1", 0);
+    }
+
+    @Override
+    public CompletableFuture<String> sendAsync(String sql) {
+        requests.incrementAndGet();
+        return CompletableFuture.completedFuture("SUCCESS");
+    }
+
+    @Override
+    public CompletableFuture<String> executeBatchAsync(int statementId, List<String[]> rows) {
+        requests.incrementAndGet();
+        return CompletableFuture.completedFuture("SUCCESS|" + rows.size());
+    }
+
+    /**
+     * @return requests answered so far, a batch counting once
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+}
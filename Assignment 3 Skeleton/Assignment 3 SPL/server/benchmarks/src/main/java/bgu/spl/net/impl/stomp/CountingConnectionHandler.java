@@ -0,0 +1,39 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.ConnectionHandler;
+import java.nio.ByteBuffer;
+
+/**
+ * A connection that only counts what it is sent, to measure the server up to the point of queueing a write.
+ */
+public class CountingConnectionHandler implements ConnectionHandler<StompFrame> {
+
+    // volatile so a benchmark can wait for deliveries made on fan-out threads, one writer at a time
+    private volatile long messages;
+    private volatile long bytes;
+
+    @Override
+    public void send(StompFrame msg) {
+        messages++;
+        bytes += msg.toBytes().length;
+    }
+
+    @Override
+    public void sendEncoded(ByteBuffer encoded) {
+        // like the real handlers, every connection reads the shared bytes through its own view
+        messages++;
+        bytes += encoded.duplicate().remaining();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+}
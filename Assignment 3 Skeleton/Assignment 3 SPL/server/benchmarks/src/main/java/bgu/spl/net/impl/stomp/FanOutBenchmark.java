@@ -0,0 +1,111 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.impl.data.StubSqlServer;
+import bgu.spl.net.srv.FanOut;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ConnectionsImpl.send(channel, ...) to a channel with many subscribers: encoding the MESSAGE once,
+ * looking up the subscribers and handing the bytes to each of their handlers.
+ * The handlers only count, socket writes are not part of it.
+ * <p>
+ * send is the time the sender's task is held, sendAndDeliver the time until every subscriber got the message.
+ * With the parallel fan-out the two differ, large channels are queued to a {@link FanOut} and delivered in
+ * chunks on its threads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    private static final String CHANNEL = "/germany_spain";
+    private static final int PARALLEL_THRESHOLD = 4096;
+    private static final int CHUNK_SIZE = 1024;
+
+    @Param({"10", "1000", "50000"})
+    public int subscribers;
+
+    @Param({"serial", "parallel"})
+    public String fanOutMode;
+
+    private FanOut fanOut;
+    private long sent = 0;
+
+    private ConnectionsImpl<StompFrame> connections;
+    private CountingConnectionHandler[] handlers;
+    private StompFrame message;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        StubSqlServer.installForDatabase();
+        Database database = Database.getInstance();
+        fanOut = fanOutMode.equals("serial")
+                ? new FanOut(1, Integer.MAX_VALUE, CHUNK_SIZE)
+                : new FanOut(Runtime.getRuntime().availableProcessors(), PARALLEL_THRESHOLD, CHUNK_SIZE);
+        connections = new ConnectionsImpl<>(new StompMessageEncoderDecoder(), fanOut);
+        handlers = new CountingConnectionHandler[subscribers];
+        for (int id = 0; id < subscribers; id++) {
+            handlers[id] = new CountingConnectionHandler();
+            connections.addConnection(id, handlers[id]);
+            database.login(id, "fan" + id, "p");
+            database.subscribe(id, CHANNEL, "1");
+        }
+        message = new StompFrame(("SEND\ndestination:" + CHANNEL + "\n\nuser: fan0\nteam a: germany\nteam b: spain\n"
+                + "event name: goal!!!!\ntime: 1980\ndescription:\nGERMANY SCORES!\n\0").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        awaitDelivered();
+        fanOut.shutdown();
+    }
+
+    /**
+     * Keeps the broadcasts of one invocation from piling up behind those of the previous ones.
+     */
+    @Setup(Level.Invocation)
+    public void awaitPrevious() {
+        awaitDelivered();
+    }
+
+    @Benchmark
+    public long send() {
+        connections.send(CHANNEL, StompFrame.message(CHANNEL, message));
+        return ++sent;
+    }
+
+    @Benchmark
+    public long sendAndDeliver() {
+        connections.send(CHANNEL, StompFrame.message(CHANNEL, message));
+        sent++;
+        awaitDelivered();
+        return handlers[subscribers - 1].getMessages();
+    }
+
+    private void awaitDelivered() {
+        for (CountingConnectionHandler handler : handlers) {
+            while (handler.getMessages() < sent) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.ReactorConfig;
+import bgu.spl.net.srv.Server;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trip latency through a reactor STOMP server, with cheap commands handed to the pool (inline=false)
+ * or processed on the selector thread (inline=true). subscribe is a SUBSCRIBE answered by a RECEIPT,
+ * send a SEND echoed back as a MESSAGE, which goes to the pool in both modes.
+ * No SQL server is needed, the audit records of the one login just fail to be written.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InlineProcessingBenchmark {
+
+    private static final String DESTINATION = "/bench";
+
+    @Param({"false", "true"})
+    public boolean inline;
+
+    private Server<StompFrame> server;
+    private Thread serverThread;
+    private SocketChannel client;
+    private final ByteBuffer in = ByteBuffer.allocate(1 << 16);
+    private ByteBuffer subscribe;
+    private ByteBuffer send;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server = Server.reactor(
+                new ReactorConfig().setThreads(4).setInlineCheapMessages(inline),
+                port,
+                StompMessagingProtocolImpl::new,
+                StompMessageEncoderDecoder::new,
+                new ConnectionsImpl<>(new StompMessageEncoderDecoder()));
+        serverThread = new Thread(server::serve, "bench-reactor");
+        serverThread.start();
+        client = connect(port);
+
+        roundTrip(frame("CONNECT\naccept-version:1.2\nhost:stomp.cs.bgu.ac.il\nlogin:bench-" + port + "\npasscode:p\n\n"));
+        subscribe = frame("SUBSCRIBE\ndestination:" + DESTINATION + "\nid:1\nreceipt:1\n\n");
+        send = frame("SEND\ndestination:" + DESTINATION + "\n\nGoal!\n");
+        roundTrip(subscribe);
+    }
+
+    @Benchmark
+    public int subscribe() throws IOException {
+        return roundTrip(subscribe);
+    }
+
+    @Benchmark
+    public int send() throws IOException {
+        return roundTrip(send);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        client.close();
+        server.close();
+        serverThread.join();
+    }
+
+    /**
+     * Writes one frame and reads until the one frame it is answered with is complete.
+     */
+    private int roundTrip(ByteBuffer request) throws IOException {
+        request.rewind();
+        while (request.hasRemaining()) {
+            client.write(request);
+        }
+        in.clear();
+        while (in.position() == 0 || in.get(in.position() - 1) != 0) {
+            if (client.read(in) < 0) {
+                throw new IOException("server closed the connection");
+            }
+        }
+        return in.position();
+    }
+
+    private static SocketChannel connect(int port) throws IOException, InterruptedException {
+        // the server thread may not be listening yet
+        for (int attempt = 0; ; attempt++) {
+            try {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+                channel.socket().setTcpNoDelay(true);
+                return channel;
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static ByteBuffer frame(String text) {
+        return ByteBuffer.wrap((text + "\0").getBytes(StandardCharsets.UTF_8));
+    }
+}
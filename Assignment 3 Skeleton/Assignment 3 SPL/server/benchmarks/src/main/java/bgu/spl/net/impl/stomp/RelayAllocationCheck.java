@@ -0,0 +1,192 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.impl.data.StubSqlServer;
+import bgu.spl.net.srv.ReactorConfig;
+import bgu.spl.net.srv.Server;
+import bgu.spl.net.srv.ServerMetrics;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the heap allocated per relayed MESSAGE in steady state, and fails if it is above a budget.
+ * A reactor server runs in this JVM with a sender and a few subscribers on one channel. The clients read
+ * and write through buffers made up front, so every byte allocated while measuring is the server's.
+ * Allocation is summed over all threads with the HotSpot ThreadMXBean, JMX and GC threads included,
+ * which adds a little noise, not a per-frame cost.
+ * <p>
+ * Run with: mvn -f benchmarks/pom.xml verify -Palloc-check
+ * Override the budget in bytes per relayed frame with -Drelay.alloc.budget=...
+ */
+public class RelayAllocationCheck {
+
+    private static final String DESTINATION = "/relay";
+    private static final int SUBSCRIBERS = 16;
+    private static final int WINDOW = 64; // SENDs in flight before the sender waits for the deliveries
+    private static final int WARMUP_SENDS = 50_000;
+    private static final int MEASURED_SENDS = 50_000;
+    private static final double DEFAULT_BUDGET = 45; // bytes per relayed frame
+
+    private final AtomicLong delivered = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        double budget = Double.parseDouble(System.getProperty("relay.alloc.budget", Double.toString(DEFAULT_BUDGET)));
+        double perFrame = new RelayAllocationCheck().run();
+        System.out.printf("relayed frame allocation: %.1f bytes (budget %.1f)%n", perFrame, budget);
+        if (perFrame > budget) {
+            System.out.println("FAILED: the SEND to MESSAGE relay allocates more than its budget");
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private double run() throws Exception {
+        StubSqlServer.installForDatabase();
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        ReactorConfig config = new ReactorConfig().setThreads(2);
+        Server<StompFrame> server = Server.reactor(
+                config,
+                port,
+                StompMessagingProtocolImpl::new,
+                StompMessageEncoderDecoder::new,
+                new ConnectionsImpl<>(new StompMessageEncoderDecoder(), config.getBufferPool()));
+        Thread serverThread = new Thread(server::serve, "relay-reactor");
+        serverThread.start();
+
+        List<SocketChannel> clients = new ArrayList<>();
+        SocketChannel sender = null;
+        for (int i = 0; i <= SUBSCRIBERS; i++) {
+            SocketChannel client = connect(port);
+            handshake(client, "relay-" + port + "-" + i);
+            clients.add(client);
+            if (i == 0) {
+                sender = client; // subscribed as well, a SEND needs it, so it gets its own frames back
+            }
+        }
+        for (SocketChannel client : clients) {
+            Thread reader = new Thread(() -> countFrames(client), "relay-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        ByteBuffer send = frame("SEND\ndestination:" + DESTINATION + "\n\n"
+                + "team a:Germany\nteam b:Japan\nevent name:goal!!!\ntime:1980\ndescription:\nA goal.\n");
+        int receivers = clients.size();
+        relay(sender, send, WARMUP_SENDS, receivers);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = totalAllocated(threads);
+        long deliveredBefore = delivered.get();
+        relay(sender, send, MEASURED_SENDS, receivers);
+        long allocated = totalAllocated(threads) - before;
+        long frames = delivered.get() - deliveredBefore;
+
+        for (SocketChannel client : clients) {
+            client.close();
+        }
+        // closing the reactor while its loop still handles the disconnects races with the loop
+        while (ServerMetrics.getInstance().getActiveConnections() > 0) {
+            Thread.sleep(10);
+        }
+        server.close();
+        serverThread.join();
+        return (double) allocated / frames;
+    }
+
+    /**
+     * Sends count copies of the frame, never more than WINDOW ahead of the deliveries.
+     */
+    private void relay(SocketChannel sender, ByteBuffer send, int count, int receivers) throws IOException {
+        long expected = delivered.get();
+        for (int sent = 0; sent < count; sent++) {
+            send.rewind();
+            while (send.hasRemaining()) {
+                sender.write(send);
+            }
+            expected += receivers;
+            while (expected - delivered.get() > (long) WINDOW * receivers) {
+                Thread.onSpinWait();
+            }
+        }
+        while (delivered.get() < expected) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private void countFrames(SocketChannel client) {
+        ByteBuffer in = ByteBuffer.allocateDirect(1 << 16);
+        try {
+            while (client.read(in) >= 0) {
+                in.flip();
+                int frames = 0;
+                while (in.hasRemaining()) {
+                    if (in.get() == 0) {
+                        frames++;
+                    }
+                }
+                delivered.addAndGet(frames);
+                in.clear();
+            }
+        } catch (IOException ignored) {
+            // closed at the end of the run
+        }
+    }
+
+    private static long totalAllocated(com.sun.management.ThreadMXBean threads) {
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    private static void handshake(SocketChannel client, String login) throws IOException {
+        roundTrip(client, frame("CONNECT\naccept-version:1.2\nhost:stomp.cs.bgu.ac.il\nlogin:" + login + "\npasscode:p\n\n"));
+        roundTrip(client, frame("SUBSCRIBE\ndestination:" + DESTINATION + "\nid:1\nreceipt:1\n\n"));
+    }
+
+    private static void roundTrip(SocketChannel client, ByteBuffer request) throws IOException {
+        while (request.hasRemaining()) {
+            client.write(request);
+        }
+        ByteBuffer in = ByteBuffer.allocate(1 << 12);
+        while (in.position() == 0 || in.get(in.position() - 1) != 0) {
+            if (client.read(in) < 0) {
+                throw new IOException("server closed the connection");
+            }
+        }
+    }
+
+    private static SocketChannel connect(int port) throws IOException, InterruptedException {
+        // the server thread may not be listening yet
+        for (int attempt = 0; ; attempt++) {
+            try {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+                channel.socket().setTcpNoDelay(true);
+                return channel;
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static ByteBuffer frame(String text) {
+        return ByteBuffer.wrap((text + "\0").getBytes(StandardCharsets.UTF_8));
+    }
+}
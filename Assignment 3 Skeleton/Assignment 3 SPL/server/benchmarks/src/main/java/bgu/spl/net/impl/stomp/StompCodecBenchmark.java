@@ -0,0 +1,68 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * StompMessageEncoderDecoder on SEND frames with bodies of different sizes.
+ * decode feeds the frame in reads of at most {@link #READ_BYTES}, the reactor's read buffer size, so larger
+ * frames are reassembled across reads. encode is relaying a received SEND as a MESSAGE, as the server does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StompCodecBenchmark {
+
+    private static final int READ_BYTES = 1 << 13; //8k
+
+    @Param({"64", "1024", "16384"})
+    public int bodyBytes;
+
+    private final StompMessageEncoderDecoder encdec = new StompMessageEncoderDecoder();
+    private ByteBuffer wire;
+    private StompFrame send;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        char[] body = new char[bodyBytes];
+        Arrays.fill(body, 'x');
+        byte[] bytes = ("SEND\ndestination:/germany_spain\nfilename:events1.json\n\n" + new String(body) + "\0")
+                .getBytes(StandardCharsets.UTF_8);
+        wire = ByteBuffer.allocateDirect(bytes.length);
+        wire.put(bytes).flip();
+        send = new StompFrame(bytes);
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) {
+        ByteBuffer read = wire.duplicate();
+        int limit = read.limit();
+        while (read.position() < limit) {
+            read.limit(Math.min(limit, read.position() + READ_BYTES));
+            encdec.decodeNextBytes(read, blackhole::consume);
+        }
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return encdec.encode(StompFrame.message("/germany_spain", send));
+    }
+}
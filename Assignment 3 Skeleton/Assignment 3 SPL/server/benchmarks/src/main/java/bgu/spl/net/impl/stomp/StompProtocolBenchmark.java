@@ -0,0 +1,114 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.impl.data.StubSqlServer;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * StompMessagingProtocolImpl.process for each command on one logged in connection, from received bytes
+ * to the replies handed to a {@link CountingConnectionHandler}. Every call gets a freshly received frame,
+ * so the lazy header parsing is measured too. The audit records go to a {@link StubSqlServer}.
+ * CONNECT is measured together with the DISCONNECT that makes it repeatable, and includes the protocol
+ * printing every login to the console. UNSUBSCRIBE is measured with the SUBSCRIBE that restores the subscription.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StompProtocolBenchmark {
+
+    private static final int CONNECTION_ID = 1;
+
+    private StompMessagingProtocolImpl protocol;
+    private CountingConnectionHandler handler;
+    private byte[] connect;
+    private byte[] disconnect;
+    private byte[] subscribe;
+    private byte[] unsubscribe;
+    private byte[] send;
+    private byte[] sendFile;
+    private byte[] report;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        StubSqlServer.installForDatabase();
+        ConnectionsImpl<StompFrame> connections = new ConnectionsImpl<>(new StompMessageEncoderDecoder());
+        handler = new CountingConnectionHandler();
+        connections.addConnection(CONNECTION_ID, handler);
+        protocol = new StompMessagingProtocolImpl();
+        protocol.start(CONNECTION_ID, connections);
+
+        char[] body = new char[512];
+        Arrays.fill(body, 'x');
+        connect = frame("CONNECT\naccept-version:1.2\nhost:stomp.cs.bgu.ac.il\nlogin:bench\npasscode:p\n\n");
+        disconnect = frame("DISCONNECT\nreceipt:77\n\n");
+        subscribe = frame("SUBSCRIBE\ndestination:/germany_spain\nid:1\nreceipt:2\n\n");
+        unsubscribe = frame("UNSUBSCRIBE\nid:1\nreceipt:3\n\n");
+        send = frame("SEND\ndestination:/germany_spain\n\n" + new String(body));
+        sendFile = frame("SEND\ndestination:/germany_spain\nfilename:events1.json\n\n" + new String(body));
+        report = frame("SEND\ndestination:/app/report\n\n");
+
+        protocol.process(new StompFrame(connect));
+        protocol.process(new StompFrame(subscribe));
+        protocol.process(new StompFrame(frame("SUBSCRIBE\ndestination:/app/report\nid:2\n\n")));
+    }
+
+    @Benchmark
+    public long connectDisconnect() {
+        protocol.process(new StompFrame(disconnect));
+        protocol.process(new StompFrame(connect));
+        // a DISCONNECT drops the subscriptions, take them back for the other benchmarks' state
+        protocol.process(new StompFrame(subscribe));
+        return handler.getMessages();
+    }
+
+    @Benchmark
+    public long subscribe() {
+        protocol.process(new StompFrame(subscribe));
+        return handler.getMessages();
+    }
+
+    @Benchmark
+    public long unsubscribeSubscribe() {
+        protocol.process(new StompFrame(unsubscribe));
+        protocol.process(new StompFrame(subscribe));
+        return handler.getMessages();
+    }
+
+    @Benchmark
+    public long send() {
+        protocol.process(new StompFrame(send));
+        return handler.getMessages();
+    }
+
+    @Benchmark
+    public long sendWithFilename() {
+        protocol.process(new StompFrame(sendFile));
+        return handler.getMessages();
+    }
+
+    @Benchmark
+    public long report() {
+        protocol.process(new StompFrame(report));
+        return handler.getMessages();
+    }
+
+    private static byte[] frame(String text) {
+        return (text + "\0").getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,105 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Tasks per second through the actor pool, the lock based {@link LegacyActorThreadPool} against the
+ * mailbox based {@link ActorThreadPool}. Every benchmark thread plays a selector loop: it submits a burst
+ * of tiny tasks round robin over its own actors and waits for all of them to run.
+ * actors=1 is one busy connection, larger values many connections sharing the workers.
+ * mailbox runs one task per turn like the legacy pool, batched lets a mailbox run up to
+ * {@link #TASKS_PER_TURN} queued tasks before handing its thread back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ActorThreadPoolBenchmark {
+
+    private static final int BURST = 1024;
+    private static final int WORKERS = 4;
+    private static final int TASKS_PER_TURN = 32;
+
+    @Param({"legacy", "mailbox", "batched"})
+    public String impl;
+
+    @Param({"1", "64"})
+    public int actors;
+
+    private LegacyActorThreadPool legacy;
+    private ActorThreadPool pool;
+
+    @State(Scope.Thread)
+    public static class Producer {
+        private final AtomicInteger ran = new AtomicInteger();
+        private final Runnable task = ran::incrementAndGet;
+        private ActorThreadPool.Mailbox[] mailboxes;
+
+        @Setup(Level.Trial)
+        public void setup(ActorThreadPoolBenchmark benchmark) {
+            // a mailbox is also a fine actor key for the legacy pool
+            mailboxes = new ActorThreadPool.Mailbox[benchmark.actors];
+            for (int i = 0; i < mailboxes.length; i++) {
+                mailboxes[i] = new ActorThreadPool.Mailbox();
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if (impl.equals("legacy")) {
+            legacy = new LegacyActorThreadPool(WORKERS);
+        } else if (impl.equals("mailbox")) {
+            pool = new ActorThreadPool(WORKERS);
+        } else {
+            pool = new ActorThreadPool(WORKERS, TASKS_PER_TURN, 500);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int submitBurst(Producer producer) {
+        int target = producer.ran.get() + BURST;
+        ActorThreadPool.Mailbox[] mailboxes = producer.mailboxes;
+        for (int i = 0; i < BURST; i++) {
+            ActorThreadPool.Mailbox mailbox = mailboxes[i % mailboxes.length];
+            if (legacy != null) {
+                legacy.submit(mailbox, producer.task);
+            } else {
+                pool.submit(mailbox, producer.task);
+            }
+        }
+        while (producer.ran.get() < target) {
+            Thread.onSpinWait();
+        }
+        return target;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (legacy != null) {
+            legacy.shutdown();
+        } else {
+            pool.shutdown();
+        }
+    }
+}
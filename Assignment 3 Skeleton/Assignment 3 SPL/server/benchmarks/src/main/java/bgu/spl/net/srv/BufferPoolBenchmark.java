@@ -0,0 +1,84 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lease and release round trips, the single global queue of 8k direct buffers the reactor used to share
+ * against {@link BufferPool}. Every benchmark thread plays a selector loop holding a few buffers at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class BufferPoolBenchmark {
+
+    private static final int LEGACY_SIZE = 1 << 13; //8k
+    private static final int HELD = 8;
+
+    @Param({"queue", "pool"})
+    public String impl;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+    private BufferPool pool;
+
+    @State(Scope.Thread)
+    public static class Held {
+        final ByteBuffer[] buffers = new ByteBuffer[HELD];
+
+        @Setup
+        public void setup(BufferPoolBenchmark benchmark) {
+            benchmark.pool.cacheOnThisThread(); // like a selector loop
+        }
+
+        @TearDown
+        public void tearDown(BufferPoolBenchmark benchmark) {
+            benchmark.pool.dropThreadCache();
+        }
+    }
+
+    @Setup
+    public void setup() {
+        pool = new BufferPool();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(HELD)
+    public void leaseRelease(Held held) {
+        ByteBuffer[] buffers = held.buffers;
+        if (impl.equals("queue")) {
+            for (int i = 0; i < HELD; i++) {
+                ByteBuffer buf = queue.poll();
+                buffers[i] = buf == null ? ByteBuffer.allocateDirect(LEGACY_SIZE) : buf.clear();
+            }
+            for (int i = 0; i < HELD; i++) {
+                queue.add(buffers[i]);
+            }
+        } else {
+            for (int i = 0; i < HELD; i++) {
+                buffers[i] = pool.lease(LEGACY_SIZE);
+            }
+            for (int i = 0; i < HELD; i++) {
+                pool.release(buffers[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.impl.echo.EchoProtocol;
+import bgu.spl.net.impl.echo.LineMessageEncoderDecoder;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Write calls per delivered frame for a subscriber with a backlog of small MESSAGE frames.
+ * maxWriteBatchFrames=1 is the one-write-per-frame behaviour, larger values use gathering writes.
+ * The writeCalls / frames aux counters give the syscalls per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteBatchBenchmark {
+
+    private static final int BACKLOG_FRAMES = 256;
+
+    @Param({"1", "64"})
+    public int maxWriteBatchFrames;
+
+    @Param({"128", "2048"})
+    public int frameBytes;
+
+    private ServerSocketChannel listener;
+    private SocketChannel client;
+    private SocketChannel server;
+    private Thread drainer;
+    private SelectorLoop loop;
+    private NonBlockingConnectionHandler<String> handler;
+    private ByteBuffer frame;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class WriteCounters {
+        public long writeCalls;
+        public long frames;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = SocketChannel.open(listener.getLocalAddress());
+        server = listener.accept();
+        server.configureBlocking(false);
+
+        // the peer keeps reading so the socket drains like a live subscriber's would
+        drainer = new Thread(() -> {
+            ByteBuffer sink = ByteBuffer.allocateDirect(1 << 16);
+            try {
+                while (client.read(sink) >= 0) {
+                    sink.clear();
+                }
+            } catch (IOException ignored) {
+            }
+        }, "drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+
+        loop = new SelectorLoop(null);
+        handler = new NonBlockingConnectionHandler<>(
+                new LineMessageEncoderDecoder(),
+                new EchoProtocol(),
+                server,
+                loop,
+                1,
+                null,
+                new ReactorConfig().setMaxWriteBatchFrames(maxWriteBatchFrames));
+
+        byte[] bytes = new byte[frameBytes];
+        Arrays.fill(bytes, (byte) 'x');
+        bytes[bytes.length - 1] = '\0';
+        frame = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BACKLOG_FRAMES)
+    public long deliverBacklog(WriteCounters counters) {
+        long framesBefore = handler.getFramesWritten();
+        long callsBefore = handler.getWriteCalls();
+        for (int i = 0; i < BACKLOG_FRAMES; i++) {
+            handler.sendEncoded(frame);
+        }
+        while (handler.getFramesWritten() - framesBefore < BACKLOG_FRAMES) {
+            handler.continueWrite();
+        }
+        // the interest updates queued by send have no selector to apply to here
+        loop.runSelectionThreadTasks();
+
+        counters.frames += handler.getFramesWritten() - framesBefore;
+        counters.writeCalls += handler.getWriteCalls() - callsBefore;
+        return counters.writeCalls;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.out.printf("%nmaxWriteBatchFrames=%d frameBytes=%d: %.3f write calls per frame%n",
+                maxWriteBatchFrames, frameBytes, (double) handler.getWriteCalls() / handler.getFramesWritten());
+        server.close();
+        client.close();
+        listener.close();
+        loop.close();
+    }
+}
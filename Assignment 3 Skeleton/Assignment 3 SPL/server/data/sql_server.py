@@ -9,6 +9,15 @@ DB_FILENAME = os.path.join(os.path.dirname(__file__), 'db.sqlite')
 HOST = '127.0.0.1'
 PORT = 7778
 
+# separators of the prepared statement requests:
+#   PREPARE US id US sql
+#   EXEC US id RS row RS row ...   (row = param US param ...)
+# and of the rows answering a query:
+#   QUERY US sql  ->  SUCCESS RS row RS row ...   (row = column US column ..., NULL as a lone SUB)
+US = '\x1f'
+RS = '\x1e'
+SUB = '\x1a'
+
 
 def init_db(conn):
     cur = conn.cursor()
@@ -46,7 +55,82 @@ def init_db(conn):
     conn.commit()
 
 
-def handle_client(conn_sock, db_conn):
+def execute(sql, db_conn, db_lock):
+    cur = db_conn.cursor()
+    try:
+        # the connection is shared by all client threads
+        with db_lock:
+            # Simple detection for SELECT
+            if sql.lower().startswith('select'):
+                cur.execute(sql)
+                rows = cur.fetchall()
+                if not rows:
+                    return 'SUCCESS'
+                parts = ['SUCCESS']
+                for r in rows:
+                    parts.append(str(r))
+                return '|'.join(parts)
+
+            # non-select statements
+            cur.execute(sql)
+            db_conn.commit()
+            # try to return lastrowid when applicable
+            try:
+                lr = cur.lastrowid
+                return 'SUCCESS' if lr is None else f"SUCCESS|{lr}"
+            except Exception:
+                return 'SUCCESS'
+
+    except Exception as e:
+        return 'ERROR:' + str(e)
+
+
+def execute_prepared(request, prepared, db_conn, db_lock):
+    """Handles PREPARE and EXEC requests, prepared maps statement ids to sql for one client connection"""
+    try:
+        if request.startswith('PREPARE' + US):
+            _, stmt_id, sql = request.split(US, 2)
+            prepared[stmt_id] = sql
+            return 'SUCCESS'
+
+        head, *rows = request.split(RS)
+        stmt_id = head.split(US, 1)[1]
+        sql = prepared.get(stmt_id)
+        if sql is None:
+            return f'ERROR:Unknown statement {stmt_id}'
+        params = [row.split(US) for row in rows]
+
+        cur = db_conn.cursor()
+        with db_lock:
+            # one transaction for the whole batch
+            try:
+                cur.executemany(sql, params)
+                db_conn.commit()
+            except Exception:
+                db_conn.rollback()
+                raise
+        return f"SUCCESS|{cur.rowcount}"
+
+    except Exception as e:
+        return 'ERROR:' + str(e)
+
+
+def query(request, db_conn, db_lock):
+    """Handles a QUERY request, answering with separator delimited rows rather than Python tuples"""
+    try:
+        sql = request.split(US, 1)[1]
+        with db_lock:
+            rows = db_conn.cursor().execute(sql).fetchall()
+        return 'SUCCESS' + ''.join(
+            RS + US.join(SUB if v is None else str(v) for v in row) for row in rows)
+    except Exception as e:
+        return 'ERROR:' + str(e)
+
+
+def handle_client(conn_sock, db_conn, db_lock):
+    # clients keep the connection open and may send the next requests before
+    # reading the previous responses, so answer every \0 terminated request in order
+    prepared = {}
     try:
         data = bytearray()
         while True:
@@ -54,49 +138,28 @@ def handle_client(conn_sock, db_conn):
             if not chunk:
                 break
             data.extend(chunk)
-            if b'\0' in chunk:
-                break
-
-        if not data:
-            return
-
-        # strip trailing null and whitespace
-        raw = data.split(b'\0', 1)[0].decode('utf-8', errors='replace').strip()
-        if raw == '':
-            conn_sock.sendall(b"ERROR:Empty query\0")
-            return
 
-        cur = db_conn.cursor()
-        try:
-            sql = raw.strip()
-            # Simple detection for SELECT
-            if sql.lower().startswith('select'):
-                cur.execute(sql)
-                rows = cur.fetchall()
-                if not rows:
-                    resp = 'SUCCESS'
+            while b'\0' in data:
+                request, _, rest = bytes(data).partition(b'\0')
+                data = bytearray(rest)
+
+                # the separators count as whitespace to Python, so only plain SQL is stripped,
+                # a PREPARE, EXEC or QUERY request may end in an empty or blank parameter
+                raw = request.decode('utf-8', errors='replace')
+                if raw.startswith('PREPARE' + US) or raw.startswith('EXEC' + US):
+                    resp = execute_prepared(raw, prepared, db_conn, db_lock)
+                elif raw.startswith('QUERY' + US):
+                    resp = query(raw, db_conn, db_lock)
+                elif raw.strip() == '':
+                    resp = 'ERROR:Empty query'
                 else:
-                    parts = ['SUCCESS']
-                    for r in rows:
-                        parts.append(str(r))
-                    resp = '|'.join(parts)
-            else:
-                # non-select statements
-                cur.execute(sql)
-                db_conn.commit()
-                # try to return lastrowid when applicable
-                try:
-                    lr = cur.lastrowid
-                    resp = 'SUCCESS' if lr is None else f"SUCCESS|{lr}"
-                except Exception:
-                    resp = 'SUCCESS'
-
-        except Exception as e:
-            resp = 'ERROR:' + str(e)
+                    resp = execute(raw.strip(), db_conn, db_lock)
 
-        # send response terminated by null
-        conn_sock.sendall(resp.encode('utf-8') + b'\0')
+                # send response terminated by null
+                conn_sock.sendall(resp.encode('utf-8') + b'\0')
 
+    except OSError:
+        pass
     finally:
         try:
             conn_sock.close()
@@ -111,6 +174,7 @@ def serve():
 
     db_conn = sqlite3.connect(DB_FILENAME, check_same_thread=False)
     init_db(db_conn)
+    db_lock = threading.Lock()
 
     srv = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
     srv.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
@@ -121,7 +185,7 @@ def serve():
     try:
         while True:
             client, addr = srv.accept()
-            t = threading.Thread(target=handle_client, args=(client, db_conn), daemon=True)
+            t = threading.Thread(target=handle_client, args=(client, db_conn, db_lock), daemon=True)
             t.start()
     except KeyboardInterrupt:
         print('Shutting down SQL server')
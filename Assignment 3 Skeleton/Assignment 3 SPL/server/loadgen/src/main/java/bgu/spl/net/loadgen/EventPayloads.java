@@ -0,0 +1,213 @@
+package bgu.spl.net.loadgen;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The game events replayed by the load generator, read from an events file of the client
+ * (client/data/events1.json) and rendered into SEND bodies the way the C++ client's report command does.
+ * Every channel replays the same events under its own team names.
+ */
+public class EventPayloads {
+
+    private final List<Map<String, Object>> events = new ArrayList<>();
+
+    @SuppressWarnings("unchecked")
+    public EventPayloads(Path eventsFile) throws IOException {
+        String json = new String(Files.readAllBytes(eventsFile), StandardCharsets.UTF_8);
+        Map<String, Object> game = (Map<String, Object>) new JsonReader(json).read();
+        for (Object event : (List<Object>) game.get("events")) {
+            events.add((Map<String, Object>) event);
+        }
+        if (events.isEmpty()) {
+            throw new IOException("no events in " + eventsFile);
+        }
+    }
+
+    public int size() {
+        return events.size();
+    }
+
+    /**
+     * @return the i-th event as the body of a SEND by the given user, without the user line
+     */
+    @SuppressWarnings("unchecked")
+    public String body(int i, String teamA, String teamB) {
+        Map<String, Object> event = events.get(i % events.size());
+        StringBuilder body = new StringBuilder(512);
+        body.append("team a:").append(teamA).append('\n');
+        body.append("team b:").append(teamB).append('\n');
+        body.append("event name:").append(event.get("event name")).append('\n');
+        body.append("time:").append(event.get("time")).append('\n');
+        appendUpdates(body, "general game updates:", (Map<String, Object>) event.get("general game updates"));
+        appendUpdates(body, "team a updates:", (Map<String, Object>) event.get("team a updates"));
+        appendUpdates(body, "team b updates:", (Map<String, Object>) event.get("team b updates"));
+        body.append("description:\n").append(event.get("description")).append('\n');
+        return body.toString();
+    }
+
+    private static void appendUpdates(StringBuilder body, String title, Map<String, Object> updates) {
+        body.append(title).append('\n');
+        if (updates != null) {
+            // the client keeps updates in a std::map, so they come out sorted by name
+            for (Map.Entry<String, Object> update : new TreeMap<>(updates).entrySet()) {
+                body.append(update.getKey()).append(':').append(update.getValue()).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Just enough JSON for an events file: objects, arrays, strings, and numbers, booleans and null
+     * kept as their literal text.
+     */
+    private static final class JsonReader {
+        private final String text;
+        private int pos;
+
+        JsonReader(String text) {
+            this.text = text;
+        }
+
+        Object read() throws IOException {
+            Object value = value();
+            skipBlanks();
+            if (pos != text.length()) {
+                throw error("trailing characters");
+            }
+            return value;
+        }
+
+        private Object value() throws IOException {
+            skipBlanks();
+            if (pos == text.length()) {
+                throw error("unexpected end");
+            }
+            char c = text.charAt(pos);
+            if (c == '{') {
+                return object();
+            } else if (c == '[') {
+                return array();
+            } else if (c == '"') {
+                return string();
+            }
+            int start = pos;
+            while (pos < text.length() && ",}] \t\r\n".indexOf(text.charAt(pos)) < 0) {
+                pos++;
+            }
+            if (start == pos) {
+                throw error("unexpected '" + c + "'");
+            }
+            return text.substring(start, pos);
+        }
+
+        private Map<String, Object> object() throws IOException {
+            Map<String, Object> object = new LinkedHashMap<>();
+            pos++; // {
+            skipBlanks();
+            if (peek() == '}') {
+                pos++;
+                return object;
+            }
+            while (true) {
+                skipBlanks();
+                String key = string();
+                skipBlanks();
+                expect(':');
+                object.put(key, value());
+                skipBlanks();
+                if (peek() == ',') {
+                    pos++;
+                } else {
+                    expect('}');
+                    return object;
+                }
+            }
+        }
+
+        private List<Object> array() throws IOException {
+            List<Object> array = new ArrayList<>();
+            pos++; // [
+            skipBlanks();
+            if (peek() == ']') {
+                pos++;
+                return array;
+            }
+            while (true) {
+                array.add(value());
+                skipBlanks();
+                if (peek() == ',') {
+                    pos++;
+                } else {
+                    expect(']');
+                    return array;
+                }
+            }
+        }
+
+        private String string() throws IOException {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (pos < text.length()) {
+                char c = text.charAt(pos++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (pos == text.length()) {
+                    break;
+                }
+                char escaped = text.charAt(pos++);
+                switch (escaped) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        if (pos + 4 > text.length()) {
+                            throw error("bad \\u escape");
+                        }
+                        sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        pos += 4;
+                        break;
+                    default: sb.append(escaped); break; // \" \\ \/
+                }
+            }
+            throw error("unterminated string");
+        }
+
+        private char peek() throws IOException {
+            if (pos == text.length()) {
+                throw error("unexpected end");
+            }
+            return text.charAt(pos);
+        }
+
+        private void expect(char c) throws IOException {
+            if (peek() != c) {
+                throw error("expected '" + c + "'");
+            }
+            pos++;
+        }
+
+        private void skipBlanks() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private IOException error(String problem) {
+            return new IOException("bad events file at character " + pos + ": " + problem);
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package bgu.spl.net.loadgen;
+
+import bgu.spl.net.impl.data.StubSqlServer;
+import bgu.spl.net.impl.stomp.StompServer;
+import bgu.spl.net.srv.LatencyHistogram;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Opens many STOMP connections to a server, subscribes them to game channels and replays game events
+ * at a fixed rate, then reports the SEND throughput and the SEND to MESSAGE latency of every delivery.
+ * <p>
+ * Latencies are counted from the time the schedule meant a SEND to go out, not from when it actually
+ * went out, so a server that falls behind shows it in the latencies instead of slowing the schedule down.
+ * With --server the STOMP server is started in this JVM against a stub SQL service, otherwise it connects
+ * to --host/--port, where a server talking to {@link StubSqlServer} or the real SQL server must be running.
+ */
+public class LoadGenerator {
+
+    // channels are named like the client names them, team a + "_" + team b
+    private static final String[] TEAMS = {
+        "Germany", "Japan", "Spain", "Canada", "Argentina", "Mexico", "France", "Australia",
+        "Brazil", "Serbia", "England", "Iran", "Portugal", "Ghana", "Morocco", "Croatia"
+    };
+
+    private final Options options;
+    private final LoadStats stats = new LoadStats();
+    private final EventPayloads events;
+    private final String[] channels;
+    private final String[][] teams; // team a and team b of every channel
+    private final List<StompLoadConnection> connections = new ArrayList<>();
+    private final int[] subscribers; // per channel
+    private long expectedDeliveries = 0; // one per subscriber of every SEND scheduled in the window
+
+    public LoadGenerator(Options options) throws IOException {
+        this.options = options;
+        this.events = new EventPayloads(options.events);
+        this.teams = teamPairs(options.channels);
+        this.channels = new String[teams.length];
+        for (int i = 0; i < teams.length; i++) {
+            channels[i] = teams[i][0] + "_" + teams[i][1];
+        }
+        this.subscribers = new int[channels.length];
+        for (int i = 0; i < options.connections; i++) {
+            for (int k = 0; k < options.subscriptions; k++) {
+                subscribers[channelOf(i, k)]++;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(Options.USAGE);
+            System.exit(2);
+            return;
+        }
+        if (options == null) {
+            System.out.println(Options.USAGE);
+            return;
+        }
+        if (options.server != null) {
+            startServer(options);
+        }
+        LoadGenerator generator = new LoadGenerator(options);
+        generator.run();
+        System.out.print(generator.report());
+        if (options.json != null) {
+            Files.writeString(options.json, generator.json());
+        }
+        // an in-process server has no way to be stopped
+        System.exit(generator.stats.getErrors() + generator.stats.getDisconnects() > 0 ? 1 : 0);
+    }
+
+    public void run() throws Exception {
+        connectAll();
+        System.out.printf(Locale.ROOT, "%d connections subscribed to %d channels, sending %d SEND/s%n",
+                connections.size(), channels.length, options.rate);
+
+        ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor();
+        long start = System.nanoTime();
+        long warmupEnd = start + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        long end = warmupEnd + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        long interval = TimeUnit.SECONDS.toNanos(1) / options.rate;
+        stats.setWindow(warmupEnd, end);
+
+        long next = start;
+        long sendCount = 0;
+        while (next - end < 0) {
+            long now = System.nanoTime();
+            if (next - now > 0) {
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+            // every SEND that is due goes out now, each stamped with its own scheduled time
+            StompLoadConnection sender = connections.get((int) (sendCount % connections.size()));
+            int channel = channelOf((int) (sendCount % connections.size()), 0);
+            String body = events.body((int) (sendCount / connections.size()), teams[channel][0], teams[channel][1]);
+            long intended = next;
+            if (intended - warmupEnd >= 0) {
+                expectedDeliveries += subscribers[channel];
+            }
+            senders.execute(() -> sender.sendEvent(channels[channel], body, intended));
+            sendCount++;
+            next += interval;
+        }
+
+        // let the deliveries of the last SENDs arrive
+        senders.shutdown();
+        senders.awaitTermination(10, TimeUnit.SECONDS);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(options.drainSeconds));
+        for (StompLoadConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    public String report() {
+        LatencyHistogram latency = stats.getLatency();
+        double seconds = stats.getWindowNanos() / 1e9;
+        long expected = expectedDeliveries;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "%nserver            %s%n", options.server == null
+                ? options.host + ":" + options.port : options.server + " (in-process)"));
+        sb.append(String.format(Locale.ROOT, "connections       %d, %d channels, %d subscriptions each%n",
+                connections.size(), channels.length, options.subscriptions));
+        sb.append(String.format(Locale.ROOT, "measured          %.1f s after %d s warm-up%n", seconds, options.warmupSeconds));
+        sb.append(String.format(Locale.ROOT, "SEND              %d (%.1f/s)%n", stats.getSent(), stats.getSent() / seconds));
+        sb.append(String.format(Locale.ROOT, "MESSAGE           %d (%.1f/s), %.2f%% of expected%n",
+                stats.getReceived(), stats.getReceived() / seconds, expected == 0 ? 0 : 100.0 * stats.getReceived() / expected));
+        sb.append(String.format(Locale.ROOT, "latency           p50 %s  p99 %s  p999 %s  max %s%n",
+                millis(latency.percentileNanos(50)), millis(latency.percentileNanos(99)),
+                millis(latency.percentileNanos(99.9)), millis(latency.getMaxNanos())));
+        sb.append(String.format(Locale.ROOT, "errors            %d ERROR frames, %d disconnects, %d failed SENDs%n",
+                stats.getErrors(), stats.getDisconnects(), stats.getSendFailures()));
+        if (stats.getErrors() > 0) {
+            sb.append(stats.getFirstErrors());
+        }
+        return sb.toString();
+    }
+
+    public String json() {
+        LatencyHistogram latency = stats.getLatency();
+        double seconds = stats.getWindowNanos() / 1e9;
+        return String.format(Locale.ROOT,
+                "{\"server\":\"%s\",\"connections\":%d,\"channels\":%d,\"subscriptions\":%d,\"rate\":%d,"
+                        + "\"seconds\":%.3f,\"sent\":%d,\"sendPerSecond\":%.1f,\"received\":%d,\"receivedPerSecond\":%.1f,"
+                        + "\"latencyNanos\":{\"p50\":%d,\"p99\":%d,\"p999\":%d,\"max\":%d},"
+                        + "\"errors\":%d,\"disconnects\":%d,\"sendFailures\":%d}%n",
+                options.server == null ? options.host + ":" + options.port : options.server,
+                connections.size(), channels.length, options.subscriptions, options.rate,
+                seconds, stats.getSent(), stats.getSent() / seconds, stats.getReceived(), stats.getReceived() / seconds,
+                latency.percentileNanos(50), latency.percentileNanos(99), latency.percentileNanos(99.9), latency.getMaxNanos(),
+                stats.getErrors(), stats.getDisconnects(), stats.getSendFailures());
+    }
+
+    private void connectAll() throws Exception {
+        // a few handshakes at a time, thousands at once only measure the accept queue
+        Semaphore inFlight = new Semaphore(options.connectParallelism);
+        List<Future<StompLoadConnection>> pending = new ArrayList<>();
+        try (ExecutorService connectors = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < options.connections; i++) {
+                int index = i;
+                pending.add(connectors.submit(() -> {
+                    inFlight.acquire();
+                    try {
+                        StompLoadConnection connection = new StompLoadConnection(
+                                options.host, options.port, "load-" + index, stats);
+                        String[] subscribed = new String[options.subscriptions];
+                        for (int k = 0; k < subscribed.length; k++) {
+                            subscribed[k] = channels[channelOf(index, k)];
+                        }
+                        connection.handshake(subscribed);
+                        return connection;
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+            for (Future<StompLoadConnection> connection : pending) {
+                connections.add(connection.get());
+            }
+        }
+    }
+
+    /**
+     * @return the k-th channel of a connection, spreading the connections evenly over the channels
+     */
+    private int channelOf(int connection, int k) {
+        return (connection + k * Math.max(1, channels.length / options.subscriptions)) % channels.length;
+    }
+
+    /**
+     * @return the teams of count channels, every ordered pair of teams once, then again with the teams numbered
+     */
+    private static String[][] teamPairs(int count) {
+        String[][] pairs = new String[count][];
+        for (int n = 0; n < count; n++) {
+            int pair = n % (TEAMS.length * (TEAMS.length - 1));
+            int a = pair / (TEAMS.length - 1);
+            int b = pair % (TEAMS.length - 1);
+            b = b >= a ? b + 1 : b; // never a team against itself
+            int round = n / (TEAMS.length * (TEAMS.length - 1));
+            String suffix = round == 0 ? "" : String.valueOf(round + 1);
+            pairs[n] = new String[]{TEAMS[a] + suffix, TEAMS[b] + suffix};
+        }
+        return pairs;
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f ms", nanos / 1e6);
+    }
+
+    /**
+     * Starts a stub SQL service and the STOMP server in this JVM and waits until the server accepts connections.
+     */
+    private static void startServer(Options options) throws IOException, InterruptedException {
+        StubSqlServer.installForDatabase();
+        if (options.port == 0) {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                options.port = probe.getLocalPort();
+            }
+        }
+        List<String> args = new ArrayList<>(List.of(String.valueOf(options.port), options.server));
+        if (options.server.equalsIgnoreCase("reactor")) {
+            args.add(String.valueOf(options.ioLoops));
+            if (options.inline) {
+                args.add("inline");
+            }
+        }
+        Thread server = new Thread(() -> StompServer.main(args.toArray(new String[0])), "stomp-server");
+        server.setDaemon(true);
+        server.start();
+
+        for (int attempt = 0; ; attempt++) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress(options.host, options.port), 1000);
+                return;
+            } catch (IOException e) {
+                if (attempt == 100 || !server.isAlive()) {
+                    throw new IOException("server did not start on port " + options.port, e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * Command line options, see {@link #USAGE}.
+     */
+    public static final class Options {
+
+        static final String USAGE = String.join("\n",
+                "Usage: LoadGenerator [options]",
+                "  --server tcp|tcp-virtual|reactor  start that server in this JVM, with a stub SQL service",
+                "  --io-loops N          reactor I/O loops of an in-process server (1)",
+                "  --inline              process SUBSCRIBE/UNSUBSCRIBE on the selector of an in-process reactor",
+                "  --host H --port P     server to load when not started in-process (127.0.0.1:7777)",
+                "  --connections N       client connections (1000)",
+                "  --channels N          game channels (32)",
+                "  --subscriptions N     channels each connection subscribes to (1)",
+                "  --rate N              SEND frames per second over all connections (1000)",
+                "  --warmup S            seconds before measuring (5)",
+                "  --duration S          seconds measured (20)",
+                "  --drain S             seconds to wait for the last deliveries (2)",
+                "  --events FILE         events to replay (../../client/data/events1.json)",
+                "  --connect-parallelism N  handshakes in flight while connecting (64)",
+                "  --json FILE           also write the results as JSON");
+
+        String server;
+        int ioLoops = 1;
+        boolean inline = false;
+        String host = "127.0.0.1";
+        int port = -1;
+        int connections = 1000;
+        int channels = 32;
+        int subscriptions = 1;
+        int rate = 1000;
+        int warmupSeconds = 5;
+        int durationSeconds = 20;
+        int drainSeconds = 2;
+        Path events = Paths.get("..", "..", "client", "data", "events1.json");
+        int connectParallelism = 64;
+        Path json;
+
+        /**
+         * @return the options, or null if only the usage was asked for
+         * @throws IllegalArgumentException for an unknown option or a bad value
+         */
+        static Options parse(String[] args) {
+            Options o = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String name = args[i];
+                switch (name) {
+                    case "--help": return null;
+                    case "--inline": o.inline = true; continue;
+                    default: break;
+                }
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("missing value for " + name);
+                }
+                String value = args[++i];
+                switch (name) {
+                    case "--server": o.server = value; break;
+                    case "--io-loops": o.ioLoops = positive(name, value); break;
+                    case "--host": o.host = value; break;
+                    case "--port": o.port = Integer.parseInt(value); break;
+                    case "--connections": o.connections = positive(name, value); break;
+                    case "--channels": o.channels = positive(name, value); break;
+                    case "--subscriptions": o.subscriptions = positive(name, value); break;
+                    case "--rate": o.rate = positive(name, value); break;
+                    case "--warmup": o.warmupSeconds = Integer.parseInt(value); break;
+                    case "--duration": o.durationSeconds = positive(name, value); break;
+                    case "--drain": o.drainSeconds = Integer.parseInt(value); break;
+                    case "--events": o.events = Paths.get(value); break;
+                    case "--connect-parallelism": o.connectParallelism = positive(name, value); break;
+                    case "--json": o.json = Paths.get(value); break;
+                    default: throw new IllegalArgumentException("unknown option " + name);
+                }
+            }
+            if (o.server != null && !o.server.matches("(?i)tcp|tcp-virtual|reactor")) {
+                throw new IllegalArgumentException("unknown server type " + o.server);
+            }
+            if (o.subscriptions > o.channels) {
+                throw new IllegalArgumentException("--subscriptions may not exceed --channels");
+            }
+            if (o.port < 0) {
+                o.port = o.server != null ? 0 : 7777; // an in-process server gets a free port
+            }
+            return o;
+        }
+
+        private static int positive(String name, String value) {
+            int n = Integer.parseInt(value);
+            if (n < 1) {
+                throw new IllegalArgumentException(name + " must be positive: " + value);
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package bgu.spl.net.loadgen;
+
+import bgu.spl.net.srv.LatencyHistogram;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What one load run observed. Only SENDs scheduled inside the measurement window count, so the warm-up
+ * and the drain at the end stay out of the throughput and the latencies.
+ */
+public class LoadStats {
+
+    private static final int ERRORS_KEPT = 5;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong sendFailures = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong unstamped = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private final StringBuffer firstErrors = new StringBuffer();
+
+    private volatile long windowStart;
+    private volatile long windowEnd;
+
+    /**
+     * Sets the measurement window, before the first SEND goes out. SENDs scheduled from start until
+     * before end are measured.
+     */
+    public void setWindow(long start, long end) {
+        windowStart = start;
+        windowEnd = end;
+    }
+
+    public long getWindowNanos() {
+        return windowEnd - windowStart;
+    }
+
+    /**
+     * @param intendedNanos when the SEND was scheduled to go out
+     */
+    void sent(long intendedNanos) {
+        if (inWindow(intendedNanos)) {
+            sent.incrementAndGet();
+        }
+    }
+
+    private boolean inWindow(long nanos) {
+        return nanos - windowStart >= 0 && windowEnd - nanos > 0;
+    }
+
+    void sendFailed() {
+        sendFailures.incrementAndGet();
+    }
+
+    /**
+     * @param sentNanos the send time the message carried, Long.MIN_VALUE if it carried none
+     */
+    void received(long sentNanos, long receivedNanos) {
+        if (sentNanos == Long.MIN_VALUE) {
+            unstamped.incrementAndGet();
+        } else if (inWindow(sentNanos)) {
+            received.incrementAndGet();
+            latency.record(receivedNanos - sentNanos);
+        }
+    }
+
+    void error(String frame) {
+        if (errors.incrementAndGet() <= ERRORS_KEPT) {
+            firstErrors.append(frame.replace('\n', ' ').trim()).append('\n');
+        }
+    }
+
+    void disconnected() {
+        disconnects.incrementAndGet();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getSendFailures() {
+        return sendFailures.get();
+    }
+
+    /**
+     * @return MESSAGE frames delivered for SENDs of the measurement window, one per subscriber
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * @return MESSAGE frames that did not come from the load generator's SENDs
+     */
+    public long getUnstamped() {
+        return unstamped.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public String getFirstErrors() {
+        return firstErrors.toString();
+    }
+
+    /**
+     * @return connections the server closed while the run was going on
+     */
+    public long getDisconnects() {
+        return disconnects.get();
+    }
+}
@@ -0,0 +1,200 @@
+package bgu.spl.net.loadgen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One simulated STOMP client. Writes go straight to the socket under a lock, a virtual thread reads
+ * every frame the server sends and records the latency of each MESSAGE carrying a send time.
+ * <p>
+ * The send time travels as the first line of the SEND body, "sent:" and System.nanoTime(), so the latency
+ * is only meaningful while the sender and the receiver run in the same JVM, as they do here.
+ */
+public class StompLoadConnection {
+
+    static final String SENT_PREFIX = "sent:";
+    private static final byte[] SENT_PREFIX_BYTES = SENT_PREFIX.getBytes(StandardCharsets.UTF_8);
+
+    private final String username;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final ReentrantLock writeLock = new ReentrantLock(); // not synchronized, so virtual threads do not pin
+    private final LoadStats stats;
+    private volatile CompletableFuture<String> awaited; // the reply the handshake is waiting for
+    private volatile boolean closing = false;
+
+    public StompLoadConnection(String host, int port, String username, LoadStats stats) throws IOException {
+        this.username = username;
+        this.stats = stats;
+        this.socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), 10_000);
+        socket.setTcpNoDelay(true);
+        this.in = new BufferedInputStream(socket.getInputStream(), 1 << 14);
+        this.out = new BufferedOutputStream(socket.getOutputStream(), 1 << 14);
+        Thread.ofVirtual().name("load-reader-" + username).start(this::readLoop);
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Logs in and subscribes to the given channels, waiting for the server's answer to each.
+     * @throws IOException if the server refuses or does not answer in time
+     */
+    public void handshake(String[] channels) throws IOException {
+        expect("CONNECTED", "CONNECT\naccept-version:1.2\nhost:stomp.cs.bgu.ac.il\nlogin:" + username + "\npasscode:load\n\n");
+        for (int i = 0; i < channels.length; i++) {
+            expect("RECEIPT", "SUBSCRIBE\ndestination:/" + channels[i] + "\nid:" + i + "\nreceipt:" + i + "\n\n");
+        }
+    }
+
+    /**
+     * Sends an event to a channel this connection is subscribed to.
+     * @param intendedNanos when the schedule wanted the SEND out, latency is counted from there
+     */
+    public void sendEvent(String channel, String body, long intendedNanos) {
+        String frame = "SEND\ndestination:/" + channel + "\n\n"
+                + SENT_PREFIX + intendedNanos + "\nuser:" + username + "\n" + body;
+        try {
+            write(frame);
+            stats.sent(intendedNanos);
+        } catch (IOException e) {
+            stats.sendFailed();
+        }
+    }
+
+    public void close() {
+        closing = true;
+        try {
+            write("DISCONNECT\nreceipt:bye\n\n");
+        } catch (IOException ignored) {
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void expect(String command, String frame) throws IOException {
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        awaited = reply;
+        write(frame);
+        String got;
+        try {
+            got = reply.get(30, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new IOException(username + ": no reply to " + frame.substring(0, frame.indexOf('\n')), e);
+        }
+        if (!got.equals(command)) {
+            throw new IOException(username + ": expected " + command + " but got " + got);
+        }
+    }
+
+    private void write(String frame) throws IOException {
+        byte[] bytes = frame.getBytes(StandardCharsets.UTF_8);
+        writeLock.lock();
+        try {
+            out.write(bytes);
+            out.write(0);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void readLoop() {
+        byte[] frame = new byte[1 << 12];
+        int len = 0;
+        try {
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b != 0) {
+                    if (len == frame.length) {
+                        frame = Arrays.copyOf(frame, len * 2);
+                    }
+                    frame[len++] = (byte) b;
+                } else if (len > 0) {
+                    onFrame(frame, len, System.nanoTime());
+                    len = 0;
+                }
+            }
+        } catch (IOException ignored) {
+            // closed below
+        }
+        if (!closing) {
+            stats.disconnected();
+        }
+        CompletableFuture<String> waiting = awaited;
+        if (waiting != null) {
+            waiting.complete("DISCONNECTED");
+        }
+    }
+
+    private void onFrame(byte[] frame, int len, long receivedNanos) {
+        int from = 0;
+        while (from < len && (frame[from] == '\n' || frame[from] == '\r')) {
+            from++; // heart-beat end of lines
+        }
+        int lineEnd = from;
+        while (lineEnd < len && frame[lineEnd] != '\n') {
+            lineEnd++;
+        }
+        String command = new String(frame, from, lineEnd - from, StandardCharsets.US_ASCII).trim();
+        if (command.equals("MESSAGE")) {
+            stats.received(sentTime(frame, lineEnd, len), receivedNanos);
+            return;
+        }
+        if (command.equals("ERROR")) {
+            stats.error(new String(frame, 0, len, StandardCharsets.UTF_8));
+        }
+        CompletableFuture<String> waiting = awaited;
+        if (waiting != null) {
+            waiting.complete(command);
+        }
+    }
+
+    /**
+     * @return the send time from the first line of the body, or Long.MIN_VALUE if the message has none
+     */
+    private static long sentTime(byte[] frame, int from, int len) {
+        // the body starts after the first empty line
+        int body = -1;
+        for (int i = from; i + 1 < len; i++) {
+            if (frame[i] == '\n' && (frame[i + 1] == '\n' || (frame[i + 1] == '\r' && i + 2 < len && frame[i + 2] == '\n'))) {
+                body = i + (frame[i + 1] == '\n' ? 2 : 3);
+                break;
+            }
+        }
+        if (body < 0 || body + SENT_PREFIX_BYTES.length > len) {
+            return Long.MIN_VALUE;
+        }
+        for (int i = 0; i < SENT_PREFIX_BYTES.length; i++) {
+            if (frame[body + i] != SENT_PREFIX_BYTES[i]) {
+                return Long.MIN_VALUE;
+            }
+        }
+        long value = 0;
+        boolean negative = false;
+        int i = body + SENT_PREFIX_BYTES.length;
+        if (i < len && frame[i] == '-') {
+            negative = true; // nanoTime may be negative
+            i++;
+        }
+        for (; i < len && frame[i] >= '0' && frame[i] <= '9'; i++) {
+            value = value * 10 + (frame[i] - '0');
+        }
+        return negative ? -value : value;
+    }
+}
@@ -1,5 +1,8 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -11,6 +14,23 @@ public interface MessageEncoderDecoder<T> {
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * add all the remaining bytes of the buffer to the decoding process.
+     * implementations should override this to scan the buffer in bulk instead of
+     * going through {@link #decodeNextByte(byte)} once per byte.
+     *
+     * @param buffer the bytes to consider, consumed up to its limit
+     * @param consumer receives every message completed by these bytes, in order
+     */
+    default void decodeNextBytes(ByteBuffer buffer, Consumer<T> consumer) {
+        while (buffer.hasRemaining()) {
+            T nextMessage = decodeNextByte(buffer.get());
+            if (nextMessage != null) {
+                consumer.accept(nextMessage);
+            }
+        }
+    }
+
     /**
      * encodes the given message to bytes array
      *
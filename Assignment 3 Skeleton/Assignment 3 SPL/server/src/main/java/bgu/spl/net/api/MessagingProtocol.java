@@ -13,5 +13,14 @@ public interface MessagingProtocol<T> {
      * @return true if the connection should be terminated
      */
     boolean shouldTerminate();
+
+    /**
+     * @param msg a received message that was not processed yet
+     * @return true if processing the message is quick and never blocks, so a server may process it
+     * on its I/O thread instead of handing it to a worker thread
+     */
+    default boolean isCheap(T msg) {
+        return false;
+    }
  
 }
\ No newline at end of file
@@ -0,0 +1,308 @@
+package bgu.spl.net.impl.data;
+
+import bgu.spl.net.srv.Reactor;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind queue for the audit records kept in SQL (registrations, logins, logouts, file uploads).
+ * Callers only queue a record, stamped with the time of the event (see {@link #timestamp()}); a flusher thread writes the queue
+ * once a batch fills up or the flush interval passes, sending each run of consecutive records of the same
+ * kind as one batch of a prepared statement. Records are written in the order they were queued.
+ * When the queue is full the calling thread flushes it itself, so memory stays bounded. A reactor's selector
+ * thread never does, since every channel of its loop would wait for SQL meanwhile; it queues past the capacity
+ * instead, which it only ever does for the logouts of the connections it closes.
+ */
+public class AuditLog implements AutoCloseable {
+	private static final DateTimeFormatter SQL_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+	private enum Kind {
+		// OR IGNORE - one user already in the table must not fail the whole batch
+		REGISTER("INSERT OR IGNORE INTO users (username, password, registration_date) VALUES (?, ?, ?)"),
+		LOGIN("INSERT INTO login_history (username, login_time) VALUES (?, ?)"),
+		LOGOUT("UPDATE login_history SET logout_time=? " +
+			"WHERE username=? AND logout_time IS NULL " +
+			"ORDER BY login_time DESC LIMIT 1"),
+		FILE_UPLOAD("INSERT INTO file_tracking (username, filename, upload_time, game_channel) VALUES (?, ?, ?, ?)");
+
+		final String sql;
+
+		Kind(String sql) {
+			this.sql = sql;
+		}
+	}
+
+	private static final class Entry {
+		final Kind kind;
+		final String time;
+		final String[] values;
+
+		Entry(Kind kind, String time, String... values) {
+			this.kind = kind;
+			this.time = time;
+			this.values = values;
+		}
+	}
+
+	private final SqlClient sqlClient;
+	private final int[] statementIds = new int[Kind.values().length];
+	private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<>(); // bounded by add()
+	private final int capacity;
+	private final int maxBatch;
+	private final long flushIntervalNanos;
+	private final Object flushLock = new Object(); // one flush at a time keeps the records in order
+	private final Thread flusher;
+	private volatile boolean running = true;
+
+	// metrics
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong recordsFlushed = new AtomicLong();
+	private final AtomicLong totalFlushNanos = new AtomicLong();
+	private final AtomicLong maxFlushNanos = new AtomicLong();
+	private final AtomicLong callerFlushes = new AtomicLong();
+	private final AtomicLong failedStatements = new AtomicLong();
+
+	/**
+	 * @param capacity most records waiting to be written
+	 * @param maxBatch most records written by one flush
+	 * @param flushIntervalMs how long a record may wait for others to share its flush
+	 */
+	public AuditLog(SqlClient sqlClient, int capacity, int maxBatch, long flushIntervalMs) {
+		if (capacity < 1 || maxBatch < 1) {
+			throw new IllegalArgumentException("capacity and maxBatch must be positive");
+		}
+		this.sqlClient = sqlClient;
+		for (Kind kind : Kind.values()) {
+			statementIds[kind.ordinal()] = sqlClient.prepare(kind.sql);
+		}
+		this.capacity = capacity;
+		this.maxBatch = maxBatch;
+		this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+		this.flusher = new Thread(this::flushLoop, "audit-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * @return the current time in the format and clock (UTC) of sqlite's datetime('now')
+	 */
+	public static String timestamp() {
+		return LocalDateTime.now(ZoneOffset.UTC).format(SQL_TIME);
+	}
+
+	public void register(String username, String password, String time) {
+		add(new Entry(Kind.REGISTER, time, username, password));
+	}
+
+	public void login(String username, String time) {
+		add(new Entry(Kind.LOGIN, time, username));
+	}
+
+	public void logout(String username, String time) {
+		add(new Entry(Kind.LOGOUT, time, username));
+	}
+
+	public void fileUpload(String username, String filename, String gameChannel, String time) {
+		add(new Entry(Kind.FILE_UPLOAD, time, username, filename, gameChannel));
+	}
+
+	/**
+	 * Writes everything queued so far before returning.
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			while (!queue.isEmpty()) {
+				List<Entry> batch = new ArrayList<>(Math.min(queue.size(), maxBatch));
+				queue.drainTo(batch, maxBatch);
+				write(batch);
+			}
+		}
+	}
+
+	/**
+	 * Stops the flusher and writes whatever is still queued.
+	 */
+	@Override
+	public void close() {
+		running = false;
+		flusher.interrupt();
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public long getFlushes() {
+		return flushes.get();
+	}
+
+	public long getRecordsFlushed() {
+		return recordsFlushed.get();
+	}
+
+	/**
+	 * @return average time a flush spent writing to SQL, in nanoseconds
+	 */
+	public long getAverageFlushNanos() {
+		long count = flushes.get();
+		return count == 0 ? 0 : totalFlushNanos.get() / count;
+	}
+
+	public long getMaxFlushNanos() {
+		return maxFlushNanos.get();
+	}
+
+	/**
+	 * @return flushes done by a caller that found the queue full
+	 */
+	public long getCallerFlushes() {
+		return callerFlushes.get();
+	}
+
+	public long getFailedStatements() {
+		return failedStatements.get();
+	}
+
+	/**
+	 * @return the queue depth and flush meters above, keyed by their names, for the server's metrics
+	 */
+	public Map<String, Long> getStats() {
+		Map<String, Long> stats = new LinkedHashMap<>();
+		stats.put("queueDepth", (long) getQueueDepth());
+		stats.put("flushes", getFlushes());
+		stats.put("recordsFlushed", getRecordsFlushed());
+		stats.put("averageFlushNanos", getAverageFlushNanos());
+		stats.put("maxFlushNanos", getMaxFlushNanos());
+		stats.put("callerFlushes", getCallerFlushes());
+		stats.put("failedStatements", getFailedStatements());
+		return stats;
+	}
+
+	private void add(Entry entry) {
+		while (queue.size() >= capacity && !Reactor.isSelectorThread()) {
+			// full - write a batch ourselves instead of growing or dropping
+			callerFlushes.incrementAndGet();
+			synchronized (flushLock) {
+				List<Entry> batch = new ArrayList<>(maxBatch);
+				queue.drainTo(batch, maxBatch);
+				write(batch);
+			}
+		}
+		queue.add(entry);
+	}
+
+	private void flushLoop() {
+		List<Entry> batch = new ArrayList<>(maxBatch);
+		while (running) {
+			try {
+				Entry first = queue.take();
+				synchronized (flushLock) {
+					batch.add(first);
+					// give the records of the next moments a chance to share this flush
+					long deadline = System.nanoTime() + flushIntervalNanos;
+					while (batch.size() < maxBatch) {
+						queue.drainTo(batch, maxBatch - batch.size());
+						long left = deadline - System.nanoTime();
+						if (batch.size() >= maxBatch || left <= 0) {
+							break;
+						}
+						Entry next = queue.poll(left, TimeUnit.NANOSECONDS);
+						if (next == null) {
+							break;
+						}
+						batch.add(next);
+					}
+					write(batch);
+					batch.clear();
+				}
+			} catch (InterruptedException e) {
+				// close() flushes what is left, including a batch cut short here
+				synchronized (flushLock) {
+					write(batch);
+					batch.clear();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a batch as one statement per run of records of the same kind. Called holding flushLock.
+	 */
+	private void write(List<Entry> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		long start = System.nanoTime();
+		List<CompletableFuture<String>> results = new ArrayList<>();
+		int from = 0;
+		while (from < batch.size()) {
+			Kind kind = batch.get(from).kind;
+			int to = from + 1;
+			while (to < batch.size() && batch.get(to).kind == kind) {
+				to++;
+			}
+			// all from this thread, so they go down one pipelined connection in order
+			try {
+				results.add(sqlClient.executeBatchAsync(statementIds[kind.ordinal()], parameters(kind, batch.subList(from, to))));
+			} catch (IllegalArgumentException e) {
+				failedStatements.incrementAndGet();
+				System.err.println("Audit write failed: " + e.getMessage());
+			}
+			from = to;
+		}
+		for (CompletableFuture<String> result : results) {
+			String response;
+			try {
+				response = result.get();
+			} catch (Exception e) {
+				response = "ERROR:" + e.getMessage();
+			}
+			if (response.startsWith("ERROR")) {
+				failedStatements.incrementAndGet();
+				System.err.println("Audit write failed: " + response);
+			}
+		}
+
+		long took = System.nanoTime() - start;
+		flushes.incrementAndGet();
+		recordsFlushed.addAndGet(batch.size());
+		totalFlushNanos.addAndGet(took);
+		maxFlushNanos.accumulateAndGet(took, Math::max);
+	}
+
+	private static List<String[]> parameters(Kind kind, List<Entry> run) {
+		List<String[]> rows = new ArrayList<>(run.size());
+		for (Entry e : run) {
+			switch (kind) {
+				case REGISTER:
+					rows.add(new String[]{e.values[0], e.values[1], e.time});
+					break;
+				case LOGIN:
+					rows.add(new String[]{e.values[0], e.time});
+					break;
+				case LOGOUT:
+					rows.add(new String[]{e.time, e.values[0]});
+					break;
+				case FILE_UPLOAD:
+					rows.add(new String[]{e.values[0], e.values[1], e.time, e.values[2]});
+					break;
+			}
+		}
+		return rows;
+	}
+}
@@ -0,0 +1,289 @@
+package bgu.spl.net.impl.data;
+
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Inverted index from a channel to the connection ids subscribed to it.
+ * Kept in sync by {@link Database} so a broadcast only visits the subscribers of its channel.
+ * Subscriptions to patterns such as /worldcup/* go to a {@link DestinationTrie} instead, plain channels stay
+ * a single hash lookup.
+ */
+public class ChannelRegistry {
+	private final ConcurrentHashMap<String, Set<Integer>> subscribers = new ConcurrentHashMap<>();
+	private final DestinationTrie patterns = new DestinationTrie();
+
+	public void add(String channel, int connectionId) {
+		if (DestinationTrie.isPattern(channel)) {
+			patterns.add(channel, connectionId);
+			return;
+		}
+		// compute() keeps add/remove atomic per channel, so a concurrent remove can't drop a fresh subscriber
+		subscribers.compute(channel, (c, ids) -> {
+			if (ids == null) {
+				ids = ConcurrentHashMap.newKeySet();
+			}
+			ids.add(connectionId);
+			return ids;
+		});
+	}
+
+	public void remove(String channel, int connectionId) {
+		if (DestinationTrie.isPattern(channel)) {
+			patterns.remove(channel, connectionId);
+			return;
+		}
+		subscribers.computeIfPresent(channel, (c, ids) -> {
+			ids.remove(connectionId);
+			return ids.isEmpty() ? null : ids;
+		});
+	}
+
+	/**
+	 * @param channel the channel to look up
+	 * @return the channel's subscribers, each once, including those subscribed through a pattern.
+	 * A live read-only view, safe to iterate while it changes; nothing is copied, whatever the channel's size.
+	 */
+	public Set<Integer> subscribersOf(String channel) {
+		Set<Integer> ids = subscribers.get(channel);
+		Set<Integer> exact = ids == null ? Collections.emptySet() : Collections.unmodifiableSet(ids);
+		if (patterns.isEmpty()) {
+			return exact;
+		}
+		List<Set<Integer>> matched = patterns.matching(channel);
+		return matched.isEmpty() ? exact : new Union(exact, matched);
+	}
+
+	/**
+	 * @param subscribers a set returned by {@link #subscribersOf(String)}
+	 * @return its size, or for a channel that patterns match an upper bound that counts the subscribers of
+	 * several of its sets twice, without walking them
+	 */
+	public static int sizeBound(Set<Integer> subscribers) {
+		return subscribers instanceof Union union ? union.sizeBound() : subscribers.size();
+	}
+
+	/**
+	 * @return true if the connection is subscribed to a pattern matching the channel
+	 */
+	public boolean matchesPattern(String channel, int connectionId) {
+		return !patterns.isEmpty() && patterns.matches(channel, connectionId);
+	}
+
+	/**
+	 * @return the number of subscribers of every channel that has any, copied
+	 */
+	public Map<String, Integer> subscriberCounts() {
+		Map<String, Integer> counts = new HashMap<>();
+		subscribers.forEach((channel, ids) -> counts.put(channel, ids.size()));
+		counts.putAll(patterns.subscriberCounts());
+		return counts;
+	}
+
+	/**
+	 * The exact subscribers of a channel and those of the patterns matching it, as one set over the live ones.
+	 * An id is skipped if an earlier set holds it, so size() and iterating walk every set; there are only as
+	 * many pattern sets as patterns match, a few at most. Splitting hands out whole sets, then splits the last
+	 * one by its own spliterator.
+	 */
+	private static final class Union extends AbstractSet<Integer> {
+		private final Set<Integer> exact;
+		private final List<Set<Integer>> matched;
+
+		Union(Set<Integer> exact, List<Set<Integer>> matched) {
+			this.exact = exact;
+			this.matched = matched;
+		}
+
+		@Override
+		public Iterator<Integer> iterator() {
+			return new Iterator<>() {
+				private int set = -1; // -1 while in exact, then the index in matched
+				private Iterator<Integer> ids = exact.iterator();
+				private Integer next;
+
+				@Override
+				public boolean hasNext() {
+					while (next == null) {
+						if (ids.hasNext()) {
+							Integer id = ids.next();
+							if (set < 0 || !inEarlierSet(id, set)) {
+								next = id;
+							}
+						} else if (set + 1 < matched.size()) {
+							ids = matched.get(++set).iterator();
+						} else {
+							return false;
+						}
+					}
+					return true;
+				}
+
+				@Override
+				public Integer next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					Integer id = next;
+					next = null;
+					return id;
+				}
+			};
+		}
+
+		@Override
+		public Spliterator<Integer> spliterator() {
+			return new Part(-1, matched.size());
+		}
+
+		int sizeBound() {
+			int bound = exact.size();
+			for (Set<Integer> ids : matched) {
+				bound += ids.size();
+			}
+			return bound;
+		}
+
+		private Set<Integer> setAt(int set) {
+			return set < 0 ? exact : matched.get(set);
+		}
+
+		private boolean inEarlierSet(Integer id, int set) {
+			if (exact.contains(id)) {
+				return true;
+			}
+			for (int i = 0; i < set; i++) {
+				if (matched.get(i).contains(id)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public int size() {
+			int size = 0;
+			for (Iterator<Integer> it = iterator(); it.hasNext(); it.next()) {
+				size++;
+			}
+			return size;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			if (!exact.isEmpty()) {
+				return false;
+			}
+			for (Set<Integer> ids : matched) {
+				if (!ids.isEmpty()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public boolean contains(Object id) {
+			if (exact.contains(id)) {
+				return true;
+			}
+			for (Set<Integer> ids : matched) {
+				if (ids.contains(id)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * The sets from set up to end, -1 standing for exact, walked with the same skipping as iterator().
+		 */
+		private final class Part implements Spliterator<Integer> {
+			private int set;
+			private int end;
+			private Spliterator<Integer> ids; // of set, the sets after it are not started yet
+			private Integer taken;
+			private final Consumer<Integer> take = id -> taken = id;
+
+			Part(int set, int end) {
+				this(set, end, setAt(set).spliterator());
+			}
+
+			Part(int set, int end, Spliterator<Integer> ids) {
+				this.set = set;
+				this.end = end;
+				this.ids = ids;
+			}
+
+			@Override
+			public boolean tryAdvance(Consumer<? super Integer> action) {
+				while (true) {
+					if (ids.tryAdvance(take)) {
+						Integer id = taken;
+						if (set < 0 || !inEarlierSet(id, set)) {
+							action.accept(id);
+							return true;
+						}
+					} else if (set + 1 < end) {
+						ids = setAt(++set).spliterator();
+					} else {
+						return false;
+					}
+				}
+			}
+
+			@Override
+			public void forEachRemaining(Consumer<? super Integer> action) {
+				while (true) {
+					int from = set;
+					ids.forEachRemaining(from < 0 ? action : id -> {
+						if (!inEarlierSet(id, from)) {
+							action.accept(id);
+						}
+					});
+					if (set + 1 >= end) {
+						return;
+					}
+					ids = setAt(++set).spliterator();
+				}
+			}
+
+			@Override
+			public Spliterator<Integer> trySplit() {
+				int unstarted = end - set - 1;
+				if (unstarted > 0) {
+					// the later half of the sets not started yet
+					int from = set + 1 + unstarted / 2;
+					Part later = new Part(from, end);
+					this.end = from;
+					return later;
+				}
+				Spliterator<Integer> half = ids.trySplit();
+				return half == null ? null : new Part(set, set + 1, half);
+			}
+
+			@Override
+			public long estimateSize() {
+				long size = ids.estimateSize();
+				for (int i = set + 1; i < end; i++) {
+					size += setAt(i).size();
+				}
+				return size;
+			}
+
+			@Override
+			public int characteristics() {
+				return DISTINCT | NONNULL;
+			}
+		}
+	}
+}
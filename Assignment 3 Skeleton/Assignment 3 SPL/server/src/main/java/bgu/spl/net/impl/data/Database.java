@@ -1,47 +1,52 @@
 package bgu.spl.net.impl.data;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.io.UncheckedIOException;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import bgu.spl.net.impl.data.SqlClient;
+import bgu.spl.net.srv.ServerMetrics;
 
 public class Database {
 	private final ConcurrentHashMap<String, User> userMap;
 	private final ConcurrentHashMap<Integer, User> connectionsIdMap;
-	private final String sqlHost;
-	private final int sqlPort;
+	private final ChannelRegistry channelRegistry;
 	private final SqlClient sqlClient;
+	private final AuditLog auditLog;
+	private final ReportModel reportModel;
 
 	private Database() {
+		// SQL server connection details, -Dsql.host / -Dsql.port point the server at another SQL service
+		this(new SqlClient(System.getProperty("sql.host", "127.0.0.1"), Integer.getInteger("sql.port", 7778)));
+		ServerMetrics.getInstance().setSubscriptionsPerChannel(channelRegistry::subscriberCounts);
+		ServerMetrics.getInstance().setAuditLog(auditLog::getStats);
+		// only the shared instance lives as long as the server, the pending audit records are flushed on exit
+		Runtime.getRuntime().addShutdownHook(new Thread(auditLog::close, "audit-shutdown"));
+	}
+
+	/**
+	 * A database of its own, apart from the shared instance, writing to and loading from the given client.
+	 */
+	Database(SqlClient sqlClient) {
 		userMap = new ConcurrentHashMap<>();
 		connectionsIdMap = new ConcurrentHashMap<>();
+		channelRegistry = new ChannelRegistry();
+		this.sqlClient = sqlClient;
 
-		// SQL server connection details
-		this.sqlHost = "127.0.0.1";
-		this.sqlPort = 7778;
-		sqlClient = new SqlClient(this.sqlHost, this.sqlPort);
+		// audit records are written behind, in batches, off the worker threads
+		auditLog = new AuditLog(sqlClient, 10_000, 256, 50);
+		reportModel = loadReportModel();
 	}
 
-	public static Database getInstance() {
-		return Instance.instance;
+	private ReportModel loadReportModel() {
+		try {
+			return ReportModel.load(sqlClient);
+		} catch (UncheckedIOException e) {
+			System.err.println("Could not load the report history from SQL, starting empty: " + e.getMessage());
+			return new ReportModel();
+		}
 	}
 
-	/**
-	 * Execute SQL query and return result
-	 * @param sql SQL query string
-	 * @return Result string from SQL server
-	 */
-	private String executeSQL(String sql) {
-		return sqlClient.send(sql);
-	}
-	
-	  // Escape SQL special characters to prevent SQL injection
-	 
-	private String escapeSql(String str) {
-		if (str == null) return "";
-		return str.replace("'", "''");
+	public static Database getInstance() {
+		return Instance.instance;
 	}
 
 	public void addUser(User user) {
@@ -55,11 +60,9 @@ public class Database {
 		}
 		if (addNewUserCase(connectionId, username, password)) {
 			// Log new user registration in SQL
-			String sql = String.format(
-				"INSERT INTO users (username, password, registration_date) VALUES ('%s', '%s', datetime('now'))",
-				escapeSql(username), escapeSql(password)
-			);
-			executeSQL(sql);
+			String now = AuditLog.timestamp();
+			auditLog.register(username, password, now);
+			reportModel.register(username, now);
 			
 			// Log login
 			logLogin(username);
@@ -75,11 +78,9 @@ public class Database {
 	}
 
 	private void logLogin(String username) {
-		String sql = String.format(
-			"INSERT INTO login_history (username, login_time) VALUES ('%s', datetime('now'))",
-			escapeSql(username)
-		);
-		executeSQL(sql);
+		String now = AuditLog.timestamp();
+		auditLog.login(username, now);
+		reportModel.login(username, now);
 	}
 
 	private LoginStatus userExistsCase(int connectionId, String username, String password) {
@@ -116,14 +117,15 @@ public class Database {
 		User user = connectionsIdMap.get(connectionsId);
 		if (user != null) {
 			// Log logout in SQL
-			String sql = String.format(
-				"UPDATE login_history SET logout_time=datetime('now') " +
-				"WHERE username='%s' AND logout_time IS NULL " +
-				"ORDER BY login_time DESC LIMIT 1",
-				escapeSql(user.name)
-			);
-			executeSQL(sql);
+			String now = AuditLog.timestamp();
+			auditLog.logout(user.name, now);
+			reportModel.logout(user.name, now);
 			
+			// subscriptions belong to the connection, drop them from the index too
+			for (String channel : user.getSubscribedChannels().keySet()) {
+				channelRegistry.remove(channel, connectionsId);
+			}
+			user.clearSubscriptions();
 			user.logout();
 			connectionsIdMap.remove(connectionsId);
 		}
@@ -136,98 +138,41 @@ public class Database {
 	 * @param gameChannel Game channel the file was reported to
 	 */
 	public void trackFileUpload(String username, String filename, String gameChannel) {
-		String sql = String.format(
-			"INSERT INTO file_tracking (username, filename, upload_time, game_channel) " +
-			"VALUES ('%s', '%s', datetime('now'), '%s')",
-			escapeSql(username), escapeSql(filename), escapeSql(gameChannel)
-		);
-		executeSQL(sql);
+		String now = AuditLog.timestamp();
+		auditLog.fileUpload(username, filename, gameChannel, now);
+		reportModel.fileUpload(username, filename, gameChannel, now);
+	}
+
+	/**
+	 * @return the write-behind queue of the SQL audit records
+	 */
+	public AuditLog getAuditLog() {
+		return auditLog;
 	}
 
 	/**
-	 * Generate and print server report using SQL queries
+	 * Generate and print server report
 	 */
 	public void printReport() {
 		System.out.println(generateReport());
 	}
 
+	/**
+	 * Renders the report from the in-memory model, without querying SQL
+	 */
 	public String generateReport() {
 		StringBuilder sb = new StringBuilder();
-		sb.append("=".repeat(80)).append("\n");
-		sb.append("SERVER REPORT - Generated at: ").append(java.time.LocalDateTime.now()).append("\n");
-		sb.append("=".repeat(80)).append("\n\n");
-
-		// registered users
-		sb.append("1. REGISTERED USERS:\n");
-		sb.append("-".repeat(80)).append("\n");
-		String usersSQL = "SELECT username, registration_date FROM users ORDER BY registration_date";
-		String usersResult = executeSQL(usersSQL);
-		if (usersResult.startsWith("SUCCESS")) {
-			String[] parts = usersResult.split("\\|");
-			if (parts.length > 1) {
-				for (int i = 1; i < parts.length; i++) {
-					sb.append("   ").append(parts[i]).append("\n");
-				}
-			} else {
-				sb.append("   No users registered\n");
-			}
-		}
-
-		// login history
-		sb.append("\n2. LOGIN HISTORY:\n");
-		sb.append("-".repeat(80)).append("\n");
-		String loginSQL = "SELECT username, login_time, logout_time FROM login_history ORDER BY username, login_time DESC";
-		String loginResult = executeSQL(loginSQL);
-		if (loginResult.startsWith("SUCCESS")) {
-			String[] parts = loginResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 3) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							sb.append("\n   User: ").append(currentUser).append("\n");
-						}
-						sb.append("      Login:  ").append(fields[1]).append("\n");
-						sb.append("      Logout: ").append(fields[2].equals("None") ? "Still logged in" : fields[2]).append("\n");
-					}
-				}
-			} else {
-				sb.append("   No login history\n");
-			}
-		}
-
-		// file uploads
-		sb.append("\n3. FILE UPLOADS:\n");
-		sb.append("-".repeat(80)).append("\n");
-		String filesSQL = "SELECT username, filename, upload_time, game_channel FROM file_tracking ORDER BY username, upload_time DESC";
-		String filesResult = executeSQL(filesSQL);
-		if (filesResult.startsWith("SUCCESS")) {
-			String[] parts = filesResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 4) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							sb.append("\n   User: ").append(currentUser).append("\n");
-						}
-						sb.append("      File: ").append(fields[1]).append("\n");
-						sb.append("      Time: ").append(fields[2]).append("\n");
-						sb.append("      Game: ").append(fields[3]).append("\n\n");
-					}
-				}
-			} else {
-				sb.append("   No files uploaded\n");
-			}
-		}
-
-		sb.append("=".repeat(80)).append("\n");
+		openReport().fill(sb, Integer.MAX_VALUE);
 		return sb.toString();
 	}
 
+	/**
+	 * @return a cursor that renders the report a page at a time
+	 */
+	public ReportCursor openReport() {
+		return reportModel.cursor();
+	}
+
 	private static class Instance {
 		static Database instance = new Database();
 	}
@@ -236,16 +181,37 @@ public class Database {
 		User user = connectionsIdMap.get(connectionId);
 		if (user != null) {
 			user.subscribe(channel, subscriptionId);
+			channelRegistry.add(channel, connectionId);
 		}
 	}
 
 	public void unsubscribe(int connectionId, String subscriptionId) {
 		User user = connectionsIdMap.get(connectionId);
 		if (user != null) {
-			user.unsubscribe(subscriptionId);
+			String channel = user.unsubscribe(subscriptionId);
+			if (channel != null) {
+				channelRegistry.remove(channel, connectionId);
+			}
 		}
 	}
 
+	/**
+	 * @param channel the channel to look up
+	 * @return the connection ids currently subscribed to the channel
+	 */
+	public Set<Integer> getChannelSubscribers(String channel) {
+		return channelRegistry.subscribersOf(channel);
+	}
+
+	/**
+	 * @return true if the connection is subscribed to the channel itself or to a pattern matching it
+	 */
+	public boolean isSubscribed(int connectionId, String channel) {
+		User user = connectionsIdMap.get(connectionId);
+		return user != null
+				&& (user.getSubscribedChannels().containsKey(channel) || channelRegistry.matchesPattern(channel, connectionId));
+	}
+
 	public User getUserByConnectionId(int connectionId) {
     	return connectionsIdMap.get(connectionId);
 	}
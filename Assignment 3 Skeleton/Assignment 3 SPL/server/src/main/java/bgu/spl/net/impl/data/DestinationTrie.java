@@ -0,0 +1,217 @@
+package bgu.spl.net.impl.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Subscriptions to destination patterns, stored by path segment, so a destination is matched in time
+ * proportional to its depth rather than to the number of patterns.
+ * A "*" segment matches exactly one segment and a final "**" matches one or more, so /worldcup/* matches
+ * /worldcup/germany_japan, and /worldcup/** matches /worldcup/group_e/germany_japan as well.
+ * Changes are serialized, matching only reads concurrent maps and sets and never blocks.
+ */
+public class DestinationTrie {
+	private static final String ONE = "*";
+	private static final String ANY = "**";
+
+	private final Node root = new Node();
+	private final AtomicInteger subscriptions = new AtomicInteger();
+
+	/**
+	 * @return true if the destination has a "*" or "**" segment
+	 */
+	public static boolean isPattern(String destination) {
+		if (destination.indexOf('*') < 0) {
+			return false;
+		}
+		for (int from = start(destination); from >= 0; from = next(destination, from)) {
+			String segment = segment(destination, from);
+			if (segment.equals(ONE) || segment.equals(ANY)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true unless "**" is followed by more segments
+	 */
+	public static boolean isValidPattern(String pattern) {
+		for (int from = start(pattern); from >= 0; from = next(pattern, from)) {
+			if (segment(pattern, from).equals(ANY) && next(pattern, from) >= 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if no connection subscribed to any pattern
+	 */
+	public boolean isEmpty() {
+		return subscriptions.get() == 0;
+	}
+
+	public synchronized void add(String pattern, int connectionId) {
+		Node node = root;
+		for (int from = start(pattern); from >= 0; from = next(pattern, from)) {
+			String segment = segment(pattern, from);
+			if (segment.equals(ANY)) {
+				if (node.rest.add(connectionId)) {
+					subscriptions.incrementAndGet();
+				}
+				return;
+			}
+			node = node.children.computeIfAbsent(segment, s -> new Node());
+		}
+		if (node.here.add(connectionId)) {
+			subscriptions.incrementAndGet();
+		}
+	}
+
+	public synchronized void remove(String pattern, int connectionId) {
+		remove(root, pattern, start(pattern), connectionId);
+	}
+
+	/**
+	 * Removes the subscription below node and drops the nodes left empty on the way back up.
+	 */
+	private void remove(Node node, String pattern, int from, int connectionId) {
+		if (from < 0) {
+			if (node.here.remove(connectionId)) {
+				subscriptions.decrementAndGet();
+			}
+			return;
+		}
+		String segment = segment(pattern, from);
+		if (segment.equals(ANY)) {
+			if (node.rest.remove(connectionId)) {
+				subscriptions.decrementAndGet();
+			}
+			return;
+		}
+		Node child = node.children.get(segment);
+		if (child == null) {
+			return;
+		}
+		remove(child, pattern, next(pattern, from), connectionId);
+		if (child.isEmpty()) {
+			node.children.remove(segment);
+		}
+	}
+
+	/**
+	 * @return the subscribers of every pattern matching the destination, one live set per pattern, not to be
+	 * changed by the caller. A connection may be in several of them. The shared empty list if none match.
+	 */
+	public List<Set<Integer>> matching(String destination) {
+		List<Set<Integer>> matched = collect(root, destination, start(destination), null);
+		return matched == null ? Collections.emptyList() : matched;
+	}
+
+	/**
+	 * @return true if the connection has a pattern matching the destination
+	 */
+	public boolean matches(String destination, int connectionId) {
+		return matches(root, destination, start(destination), connectionId);
+	}
+
+	/**
+	 * Walks the exact and the "*" child of every level, adding the non-empty sets it meets.
+	 * @return into, made on the first set found, null while there is none
+	 */
+	private List<Set<Integer>> collect(Node node, String destination, int from, List<Set<Integer>> into) {
+		if (from < 0) {
+			return add(node.here, into);
+		}
+		into = add(node.rest, into);
+		int next = next(destination, from);
+		Node exact = node.children.get(segment(destination, from));
+		if (exact != null) {
+			into = collect(exact, destination, next, into);
+		}
+		Node one = node.children.get(ONE);
+		return one != null ? collect(one, destination, next, into) : into;
+	}
+
+	private static List<Set<Integer>> add(Set<Integer> ids, List<Set<Integer>> into) {
+		if (ids.isEmpty()) {
+			return into;
+		}
+		if (into == null) {
+			into = new ArrayList<>(2);
+		}
+		into.add(ids);
+		return into;
+	}
+
+	/**
+	 * Walks like collect, but stops as soon as the connection is found.
+	 */
+	private boolean matches(Node node, String destination, int from, int connectionId) {
+		if (from < 0) {
+			return node.here.contains(connectionId);
+		}
+		if (node.rest.contains(connectionId)) {
+			return true;
+		}
+		int next = next(destination, from);
+		Node exact = node.children.get(segment(destination, from));
+		if (exact != null && matches(exact, destination, next, connectionId)) {
+			return true;
+		}
+		Node one = node.children.get(ONE);
+		return one != null && matches(one, destination, next, connectionId);
+	}
+
+	/**
+	 * @return the number of subscribers of every pattern that has any, keyed by the pattern
+	 */
+	public Map<String, Integer> subscriberCounts() {
+		Map<String, Integer> counts = new HashMap<>();
+		count(root, "", counts);
+		return counts;
+	}
+
+	private static void count(Node node, String path, Map<String, Integer> counts) {
+		if (!node.here.isEmpty()) {
+			counts.put(path, node.here.size());
+		}
+		if (!node.rest.isEmpty()) {
+			counts.put(path + "/" + ANY, node.rest.size());
+		}
+		node.children.forEach((segment, child) -> count(child, path + "/" + segment, counts));
+	}
+
+	// a destination's segments are walked by index: start() is the first, next() the one after, -1 past the last
+
+	private static int start(String destination) {
+		return destination.startsWith("/") ? 1 : 0;
+	}
+
+	private static int next(String destination, int from) {
+		int slash = destination.indexOf('/', from);
+		return slash < 0 ? -1 : slash + 1;
+	}
+
+	private static String segment(String destination, int from) {
+		int slash = destination.indexOf('/', from);
+		return destination.substring(from, slash < 0 ? destination.length() : slash);
+	}
+
+	private static final class Node {
+		final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>();
+		final Set<Integer> here = ConcurrentHashMap.newKeySet(); // patterns ending at this node
+		final Set<Integer> rest = ConcurrentHashMap.newKeySet(); // patterns ending in "**" below this node
+
+		boolean isEmpty() {
+			return here.isEmpty() && rest.isEmpty() && children.isEmpty();
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package bgu.spl.net.impl.data;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Walks the report of a {@link ReportModel} a piece at a time, so a long report can be sent in pages
+ * without ever holding all of it. Each call to {@link #fill} continues where the previous one stopped.
+ * Entries added while the cursor is open may or may not be included, like rows behind an SQL cursor.
+ */
+public class ReportCursor {
+	private enum Section { HEADER, USERS, LOGINS, UPLOADS, FOOTER, DONE }
+
+	private static final String RULE = "=".repeat(80);
+	private static final String DASHES = "-".repeat(80);
+
+	private final ReportModel model;
+	private Section section = Section.HEADER;
+
+	// position inside the current section
+	private int registration;
+	private Iterator<Map.Entry<String, ReportModel.History>> users;
+	private List<String[]> entries; // the current user's sessions or uploads, walked newest first
+	private int entry;
+	private boolean any;
+
+	ReportCursor(ReportModel model) {
+		this.model = model;
+	}
+
+	public boolean hasMore() {
+		return section != Section.DONE;
+	}
+
+	/**
+	 * Appends the next part of the report, stopping at the first entry boundary once sb holds maxChars characters.
+	 * @return true if more of the report is left
+	 */
+	public boolean fill(StringBuilder sb, int maxChars) {
+		while (section != Section.DONE && sb.length() < maxChars) {
+			step(sb);
+		}
+		return hasMore();
+	}
+
+	private void step(StringBuilder sb) {
+		switch (section) {
+			case HEADER:
+				sb.append(RULE).append("\n");
+				sb.append("SERVER REPORT - Generated at: ").append(java.time.LocalDateTime.now()).append("\n");
+				sb.append(RULE).append("\n\n");
+				// registered users
+				sb.append("1. REGISTERED USERS:\n");
+				sb.append(DASHES).append("\n");
+				section = Section.USERS;
+				break;
+
+			case USERS:
+				String[] user = model.registrationAt(registration);
+				if (user != null) {
+					sb.append("   (").append(pythonRepr(user[0])).append(", ").append(pythonRepr(user[1])).append(")\n");
+					registration++;
+					break;
+				}
+				if (registration == 0) {
+					sb.append("   No users registered\n");
+				}
+				// login history
+				sb.append("\n2. LOGIN HISTORY:\n");
+				sb.append(DASHES).append("\n");
+				startUsers(Section.LOGINS);
+				break;
+
+			case LOGINS:
+				if (nextEntry(sb)) {
+					String[] session = entries.get(entry);
+					sb.append("      Login:  ").append(session[0]).append("\n");
+					sb.append("      Logout: ").append(session[1] == null ? "Still logged in" : session[1]).append("\n");
+					break;
+				}
+				if (!any) {
+					sb.append("   No login history\n");
+				}
+				// file uploads
+				sb.append("\n3. FILE UPLOADS:\n");
+				sb.append(DASHES).append("\n");
+				startUsers(Section.UPLOADS);
+				break;
+
+			case UPLOADS:
+				if (nextEntry(sb)) {
+					String[] upload = entries.get(entry);
+					sb.append("      File: ").append(upload[0]).append("\n");
+					sb.append("      Time: ").append(upload[1]).append("\n");
+					sb.append("      Game: ").append(upload[2]).append("\n\n");
+					break;
+				}
+				if (!any) {
+					sb.append("   No files uploaded\n");
+				}
+				section = Section.FOOTER;
+				break;
+
+			case FOOTER:
+				sb.append(RULE).append("\n");
+				section = Section.DONE;
+				break;
+
+			default:
+				break;
+		}
+	}
+
+	private void startUsers(Section next) {
+		section = next;
+		users = model.histories();
+		entries = null;
+		any = false;
+	}
+
+	/**
+	 * Moves to the next session or upload, starting the next user that has any when the current one is done.
+	 * @return false once every user was walked
+	 */
+	private boolean nextEntry(StringBuilder sb) {
+		if (entries != null && --entry >= 0) {
+			return true;
+		}
+		while (users.hasNext()) {
+			Map.Entry<String, ReportModel.History> next = users.next();
+			entries = section == Section.LOGINS ? next.getValue().sessions() : next.getValue().uploads();
+			if (!entries.isEmpty()) {
+				any = true;
+				entry = entries.size() - 1;
+				sb.append("\n   User: ").append(next.getKey()).append("\n");
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// the users section used to print the SQL server's Python tuples as they were, keep that look
+	private static String pythonRepr(String value) {
+		if (value == null) {
+			return "None";
+		}
+		char quote = value.indexOf('\'') >= 0 && value.indexOf('"') < 0 ? '"' : '\'';
+		StringBuilder sb = new StringBuilder(value.length() + 2).append(quote);
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == quote || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c == '\n') {
+				sb.append("\\n");
+			} else if (c == '\r') {
+				sb.append("\\r");
+			} else if (c == '\t') {
+				sb.append("\\t");
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append(quote).toString();
+	}
+}
@@ -0,0 +1,125 @@
+package bgu.spl.net.impl.data;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * In-memory copy of what the server report shows: registered users, login sessions and file uploads.
+ * Loaded from SQL once, then kept up to date by {@link Database} from the same events it writes to SQL,
+ * so rendering a report never queries SQL. Everything is kept in event order, oldest first.
+ */
+public class ReportModel {
+	private final List<String[]> registrations = new ArrayList<>(); // guarded by itself, {username, date}
+	private final Set<String> registered = new HashSet<>(); // guarded by registrations
+	private final ConcurrentSkipListMap<String, History> histories = new ConcurrentSkipListMap<>(); // sorted by username
+
+	static final class History {
+		final List<String[]> sessions = new ArrayList<>(); // guarded by this, {login, logout or null}
+		final List<String[]> uploads = new ArrayList<>(); // guarded by this, {filename, time, game}
+
+		synchronized List<String[]> sessions() {
+			// sessions are closed in place, so copy them rather than the list holding them
+			List<String[]> copy = new ArrayList<>(sessions.size());
+			for (String[] session : sessions) {
+				copy.add(session.clone());
+			}
+			return copy;
+		}
+
+		synchronized List<String[]> uploads() {
+			return new ArrayList<>(uploads);
+		}
+	}
+
+	/**
+	 * Builds the model from what is already in SQL.
+	 * @throws java.io.UncheckedIOException if the SQL server could not be queried
+	 */
+	public static ReportModel load(SqlClient sqlClient) {
+		ReportModel model = new ReportModel();
+		for (String[] row : sqlClient.query("SELECT username, registration_date FROM users ORDER BY registration_date")) {
+			model.register(row[0], row[1]);
+		}
+		for (String[] row : sqlClient.query("SELECT username, login_time, logout_time FROM login_history ORDER BY id")) {
+			History history = model.historyOf(row[0]);
+			synchronized (history) {
+				history.sessions.add(new String[]{row[1], row[2]});
+			}
+		}
+		for (String[] row : sqlClient.query("SELECT username, filename, upload_time, game_channel FROM file_tracking ORDER BY id")) {
+			model.fileUpload(row[0], row[1], row[3], row[2]);
+		}
+		return model;
+	}
+
+	public void register(String username, String time) {
+		synchronized (registrations) {
+			// a user registered in an earlier run keeps its first registration, like the SQL row
+			if (registered.add(username)) {
+				registrations.add(new String[]{username, time});
+			}
+		}
+	}
+
+	public void login(String username, String time) {
+		History history = historyOf(username);
+		synchronized (history) {
+			history.sessions.add(new String[]{time, null});
+		}
+	}
+
+	/**
+	 * Closes the user's latest session that is still open.
+	 */
+	public void logout(String username, String time) {
+		History history = historyOf(username);
+		synchronized (history) {
+			for (int i = history.sessions.size() - 1; i >= 0; i--) {
+				String[] session = history.sessions.get(i);
+				if (session[1] == null) {
+					session[1] = time;
+					return;
+				}
+			}
+		}
+	}
+
+	public void fileUpload(String username, String filename, String gameChannel, String time) {
+		History history = historyOf(username);
+		synchronized (history) {
+			history.uploads.add(new String[]{filename, time, gameChannel});
+		}
+	}
+
+	/**
+	 * @return a cursor over a new report, which reads the model as it goes
+	 */
+	public ReportCursor cursor() {
+		return new ReportCursor(this);
+	}
+
+	/**
+	 * @return the i-th registration as {username, date}, or null past the last one
+	 */
+	String[] registrationAt(int i) {
+		synchronized (registrations) {
+			return i < registrations.size() ? registrations.get(i) : null;
+		}
+	}
+
+	/**
+	 * @return the users' histories in username order, weakly consistent with concurrent changes
+	 */
+	Iterator<Map.Entry<String, History>> histories() {
+		return histories.entrySet().iterator();
+	}
+
+	private History historyOf(String username) {
+		return histories.computeIfAbsent(username, name -> new History());
+	}
+}
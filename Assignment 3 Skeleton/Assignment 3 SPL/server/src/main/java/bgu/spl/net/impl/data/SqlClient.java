@@ -1,35 +1,400 @@
 package bgu.spl.net.impl.data;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import bgu.spl.net.srv.ServerMetrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client of the SQL service. Requests and responses are \0 terminated strings.
+ * Keeps a small pool of long lived connections and pipelines requests on them: a request is
+ * written as soon as it is sent and its response is matched in order by the connection's reader.
+ * <p>
+ * Besides plain SQL text a request may run a prepared statement with bound parameters:
+ * <pre>
+ * PREPARE US id US sql           - registers sql (with ? placeholders) under id on this connection
+ * EXEC US id RS row RS row ...    - runs statement id once per row, row = param US param ...
+ * QUERY US sql                   - answered with SUCCESS RS row RS row ..., row = column US column ...
+ * </pre>
+ * US is the unit separator 0x1F and RS the record separator 0x1E. Statements are prepared on each
+ * pooled connection the first time they are executed on it, so callers only ever see the id.
+ */
+public class SqlClient implements Closeable {
+
+    private static final int DEFAULT_POOL_SIZE = 2;
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 2000;
+    private static final int DEFAULT_READ_TIMEOUT_MS = 5000;
+    static final char UNIT_SEPARATOR = '\u001F';
+    static final char RECORD_SEPARATOR = '\u001E';
+    static final char NULL_MARKER = '\u001A'; //a column holding only this is SQL NULL
 
-public class SqlClient {
     private final String host;
     private final int port;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final PooledConnection[] pool;
+    private volatile boolean closed = false;
+
+    private final ConcurrentHashMap<String, Integer> statementIds = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, String> statements = new ConcurrentHashMap<>();
+    private final AtomicInteger nextStatementId = new AtomicInteger(1);
 
     public SqlClient(String host, int port) {
+        this(host, port, DEFAULT_POOL_SIZE, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    /**
+     * @param poolSize number of connections kept open to the SQL service
+     * @param connectTimeoutMs how long to wait for a connection to be established
+     * @param readTimeoutMs how long a request may wait for its response before its connection is dropped
+     */
+    public SqlClient(String host, int port, int poolSize, int connectTimeoutMs, int readTimeoutMs) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("poolSize must be positive: " + poolSize);
+        }
         this.host = host;
         this.port = port;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        this.pool = new PooledConnection[poolSize];
+        for (int i = 0; i < poolSize; i++) {
+            pool[i] = new PooledConnection(i);
+        }
     }
 
+    /**
+     * Sends a request and waits for its response.
+     * @return the response, or "ERROR:" and a description if the request could not be served
+     */
     public String send(String sql) {
-        try (Socket socket = new Socket(host, port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+        return await(sendAsync(sql));
+    }
+
+    /**
+     * Registers a statement with ? placeholders for its parameters. Preparing the same text twice gives the same id.
+     * @return the id to execute the statement with
+     */
+    public int prepare(String sql) {
+        return statementIds.computeIfAbsent(sql, text -> {
+            int id = nextStatementId.getAndIncrement();
+            statements.put(id, text);
+            return id;
+        });
+    }
+
+    /**
+     * Runs a prepared statement once and waits for its response.
+     */
+    public String execute(int statementId, String... params) {
+        return await(executeBatchAsync(statementId, Collections.singletonList(params)));
+    }
+
+    /**
+     * Runs a prepared statement once per row of parameters, all in one round trip, and waits for the response.
+     */
+    public String executeBatch(int statementId, List<String[]> rows) {
+        return await(executeBatchAsync(statementId, rows));
+    }
+
+    /**
+     * Runs a prepared statement once per row of parameters, all in one round trip.
+     * Parameters may not contain \0, US or RS.
+     */
+    public CompletableFuture<String> executeBatchAsync(int statementId, List<String[]> rows) {
+        String sql = statements.get(statementId);
+        if (sql == null) {
+            throw new IllegalArgumentException("unknown statement id: " + statementId);
+        }
+        StringBuilder request = new StringBuilder(64).append("EXEC").append(UNIT_SEPARATOR).append(statementId);
+        for (String[] row : rows) {
+            request.append(RECORD_SEPARATOR);
+            for (int i = 0; i < row.length; i++) {
+                if (i > 0) {
+                    request.append(UNIT_SEPARATOR);
+                }
+                appendParam(request, row[i]);
+            }
+        }
 
-            out.print(sql + '\0');
-            out.flush();
+        CompletableFuture<String> response = new CompletableFuture<>();
+        if (closed) {
+            response.completeExceptionally(new IOException("client is closed"));
+            return response;
+        }
+        connectionOfThisThread().send(statementId, sql, request.toString(), response);
+        return response;
+    }
+
+    /**
+     * Runs a SELECT and waits for its rows.
+     * @return the rows, each an array of its columns, where SQL NULL is null
+     * @throws UncheckedIOException if the query could not be served
+     */
+    public List<String[]> query(String sql) {
+        String response = send("QUERY" + UNIT_SEPARATOR + sql);
+        if (!response.startsWith("SUCCESS")) {
+            throw new UncheckedIOException(new IOException(response));
+        }
+        List<String[]> rows = new ArrayList<>();
+        int from = response.indexOf(RECORD_SEPARATOR);
+        while (from >= 0) {
+            int to = response.indexOf(RECORD_SEPARATOR, from + 1);
+            String[] row = response.substring(from + 1, to < 0 ? response.length() : to).split(String.valueOf(UNIT_SEPARATOR), -1);
+            for (int i = 0; i < row.length; i++) {
+                if (row[i].length() == 1 && row[i].charAt(0) == NULL_MARKER) {
+                    row[i] = null;
+                }
+            }
+            rows.add(row);
+            from = to;
+        }
+        return rows;
+    }
+
+    private static void appendParam(StringBuilder request, String param) {
+        for (int i = 0; i < param.length(); i++) {
+            char c = param.charAt(i);
+            if (c == '\0' || c == UNIT_SEPARATOR || c == RECORD_SEPARATOR) {
+                throw new IllegalArgumentException("parameter contains a separator character");
+            }
+        }
+        request.append(param);
+    }
+
+    private String await(CompletableFuture<String> response) {
+        try {
+            return response.get(readTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            return "ERROR:" + e.getCause().getMessage();
+        } catch (TimeoutException e) {
+            return "ERROR:timed out waiting for the SQL server";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "ERROR:interrupted";
+        }
+    }
+
+    /**
+     * Sends a request without waiting for its response.
+     * Requests sent from one thread are answered in the order they were sent.
+     * @return the response, completed exceptionally if the connection fails first
+     */
+    public CompletableFuture<String> sendAsync(String sql) {
+        CompletableFuture<String> response = new CompletableFuture<>();
+        if (closed) {
+            response.completeExceptionally(new IOException("client is closed"));
+            return response;
+        }
+        connectionOfThisThread().send(sql, response);
+        return response;
+    }
+
+    private PooledConnection connectionOfThisThread() {
+        // a single thread always uses the same connection, keeping its requests in order
+        return pool[(int) (Thread.currentThread().threadId() % pool.length)];
+    }
 
-            StringBuilder response = new StringBuilder();
-            int ch;
-            while ((ch = in.read()) != -1 && ch != '\0') {
-                response.append((char) ch);
+    @Override
+    public void close() {
+        closed = true;
+        for (PooledConnection connection : pool) {
+            connection.fail(new IOException("client is closed"));
+        }
+    }
+
+    /**
+     * One socket to the SQL service and the responses still owed on it.
+     * A failed socket is dropped and replaced by a new one on the next request.
+     */
+    private class PooledConnection {
+
+        private final int index;
+        private Socket socket; //guarded by this
+        private OutputStream out; //guarded by this
+        private final ArrayDeque<CompletableFuture<String>> pending = new ArrayDeque<>(); //guarded by this
+        // when each pending request was written, a ring in the same order as pending, so nothing is boxed
+        private long[] sentAt = new long[64]; //guarded by this
+        private int sentHead = 0; //guarded by this
+        private final Set<Integer> prepared = new HashSet<>(); //guarded by this, statements known to the socket
+
+        PooledConnection(int index) {
+            this.index = index;
+        }
+
+        synchronized void send(String request, CompletableFuture<String> response) {
+            try {
+                if (socket == null) {
+                    connect();
+                }
+                write(request, response);
+                out.flush();
+            } catch (IOException e) {
+                response.completeExceptionally(e);
+                fail(e);
+            }
+        }
+
+        synchronized void send(int statementId, String sql, String request, CompletableFuture<String> response) {
+            try {
+                if (socket == null) {
+                    connect();
+                }
+                if (prepared.add(statementId)) {
+                    // pipelined ahead of the EXEC; if it fails the EXEC fails with it, so its own response is ignored
+                    write("PREPARE" + UNIT_SEPARATOR + statementId + UNIT_SEPARATOR + sql, new CompletableFuture<>());
+                }
+                write(request, response);
+                out.flush();
+            } catch (IOException e) {
+                response.completeExceptionally(e);
+                fail(e);
+            }
+        }
+
+        private void write(String request, CompletableFuture<String> response) throws IOException {
+            // queued before writing so the reader always finds the future of the response it reads
+            pending.add(response);
+            pushSentAt(System.nanoTime());
+            out.write(request.getBytes(StandardCharsets.UTF_8));
+            out.write('\0');
+        }
+
+        private void connect() throws IOException {
+            Socket created = new Socket();
+            try {
+                created.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+                // the reader wakes up a few times per timeout to check the oldest request's deadline
+                created.setSoTimeout(Math.max(readTimeoutMs / 4, 1));
+                created.setTcpNoDelay(true);
+            } catch (IOException e) {
+                created.close();
+                throw e;
+            }
+            socket = created;
+            out = new BufferedOutputStream(created.getOutputStream());
+            InputStream in = new BufferedInputStream(created.getInputStream());
+
+            Thread reader = new Thread(() -> readResponses(created, in), "sql-client-" + index);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void readResponses(Socket from, InputStream in) {
+            ByteArrayOutputStream response = new ByteArrayOutputStream(256);
+            try {
+                while (true) {
+                    int b;
+                    try {
+                        b = in.read();
+                    } catch (SocketTimeoutException e) {
+                        if (!isOverdue(from)) {
+                            continue; //nothing was asked, or the oldest request still has time
+                        }
+                        throw new SocketTimeoutException("no response from the SQL server within " + readTimeoutMs + "ms");
+                    }
+                    if (b == -1) {
+                        throw new IOException("SQL server closed the connection");
+                    } else if (b != '\0') {
+                        response.write(b);
+                    } else {
+                        CompletableFuture<String> owner = nextPending(from);
+                        if (owner == null) {
+                            return; //the socket was replaced meanwhile
+                        }
+                        owner.complete(new String(response.toByteArray(), StandardCharsets.UTF_8));
+                        response.reset();
+                    }
+                }
+            } catch (IOException e) {
+                failIfCurrent(from, e);
+            }
+        }
+
+        /**
+         * Responses come in order, so only the oldest request waiting on the socket can be the first one late.
+         * @return true if it was written more than readTimeoutMs ago
+         */
+        private synchronized boolean isOverdue(Socket from) {
+            return socket == from && !pending.isEmpty()
+                    && System.nanoTime() - sentAt[sentHead] > TimeUnit.MILLISECONDS.toNanos(readTimeoutMs);
+        }
+
+        private synchronized CompletableFuture<String> nextPending(Socket from) {
+            if (socket != from) {
+                return null;
+            }
+            CompletableFuture<String> owner = pending.poll();
+            if (owner != null) {
+                ServerMetrics.getInstance().sqlRoundTrip().record(System.nanoTime() - pollSentAt());
+            }
+            return owner;
+        }
+
+        private void pushSentAt(long nanos) {
+            int count = pending.size() - 1; // the request being written is already in pending
+            if (count == sentAt.length) {
+                long[] grown = new long[sentAt.length * 2];
+                for (int i = 0; i < count; i++) {
+                    grown[i] = sentAt[(sentHead + i) % sentAt.length];
+                }
+                sentAt = grown;
+                sentHead = 0;
+            }
+            sentAt[(sentHead + count) % sentAt.length] = nanos;
+        }
+
+        private long pollSentAt() {
+            long nanos = sentAt[sentHead];
+            sentHead = (sentHead + 1) % sentAt.length;
+            return nanos;
+        }
+
+        private synchronized void failIfCurrent(Socket from, IOException cause) {
+            if (socket == from) {
+                fail(cause);
+            }
+        }
+
+        /**
+         * Drops the socket and fails every request still waiting on it.
+         */
+        synchronized void fail(IOException cause) {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+                socket = null;
+                out = null;
+                prepared.clear();
+            }
+            sentHead = 0;
+            CompletableFuture<String> waiting;
+            while ((waiting = pending.poll()) != null) {
+                waiting.completeExceptionally(cause);
             }
-            return response.toString();
-        } catch (Exception e) {
-            return "ERROR:" + e.getMessage();
         }
     }
 }
@@ -0,0 +1,102 @@
+package bgu.spl.net.impl.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for data/sql_server.py in benchmarks and load tests: answers SUCCESS to every \0 terminated
+ * request, so the server's audit writes cost a round trip but nothing is stored. Queries get no rows.
+ * Started in-process with {@link #installForDatabase()}, or on its own with:
+ * java bgu.spl.net.impl.data.StubSqlServer [port], 7778 by default
+ */
+public final class StubSqlServer implements Closeable {
+
+	private static final byte[] SUCCESS = "SUCCESS\0".getBytes(StandardCharsets.UTF_8);
+	private static StubSqlServer installed;
+
+	private final ServerSocket listener;
+	private final AtomicLong requests = new AtomicLong();
+
+	/**
+	 * @param port the port to listen on, 0 for any free one
+	 */
+	public StubSqlServer(int port) throws IOException {
+		listener = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		Thread.ofPlatform().daemon().name("stub-sql-accept").start(this::acceptLoop);
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		StubSqlServer stub = new StubSqlServer(args.length > 0 ? Integer.parseInt(args[0]) : 7778);
+		System.out.println("Stub SQL server on 127.0.0.1:" + stub.getPort());
+		Thread.currentThread().join();
+	}
+
+	/**
+	 * Starts a stub on a free port, once per JVM, and points the shared Database at it.
+	 * Has to run before the first {@link Database#getInstance()}.
+	 * @return the stub
+	 */
+	public static synchronized StubSqlServer installForDatabase() throws IOException {
+		if (installed == null) {
+			installed = new StubSqlServer(0);
+			System.setProperty("sql.host", "127.0.0.1");
+			System.setProperty("sql.port", String.valueOf(installed.getPort()));
+		}
+		return installed;
+	}
+
+	public int getPort() {
+		return listener.getLocalPort();
+	}
+
+	/**
+	 * @return requests answered so far
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		listener.close();
+	}
+
+	private void acceptLoop() {
+		try {
+			while (true) {
+				Socket client = listener.accept();
+				Thread.ofVirtual().start(() -> serve(client));
+			}
+		} catch (IOException ignored) {
+			// closed
+		}
+	}
+
+	private void serve(Socket client) {
+		try (Socket socket = client) {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			int b;
+			while ((b = in.read()) != -1) {
+				if (b == 0) {
+					requests.incrementAndGet();
+					out.write(SUCCESS);
+					// pipelined requests are answered together once the client stops writing
+					if (in.available() == 0) {
+						out.flush();
+					}
+				}
+			}
+		} catch (IOException ignored) {
+		}
+	}
+}
@@ -1,6 +1,6 @@
 package bgu.spl.net.impl.data;
 
-import java.util.ArrayList;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class User {
@@ -44,12 +44,19 @@ public class User {
 		subscriptions.put(channel, subscriptionId);
 	}
 
-	public void unsubscribe(String subscriptionId){
-		for (String id : new ArrayList<>(subscriptions.values())) {
-    		if (id.equals(subscriptionId)) {
-        		subscriptions.values().remove(id);
-        		break;
-    		}
+	/**
+	 * @return the channel the subscription was on, or null if there was no such subscription
+	 */
+	public String unsubscribe(String subscriptionId){
+		for (Map.Entry<String, String> entry : subscriptions.entrySet()) {
+			if (entry.getValue().equals(subscriptionId) && subscriptions.remove(entry.getKey(), subscriptionId)) {
+				return entry.getKey();
+			}
 		}
+		return null;
+	}
+
+	public void clearSubscriptions(){
+		subscriptions.clear();
 	}
 }
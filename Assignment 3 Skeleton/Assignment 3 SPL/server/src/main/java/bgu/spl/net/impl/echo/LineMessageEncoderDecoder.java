@@ -1,8 +1,10 @@
 package bgu.spl.net.impl.echo;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.function.Consumer;
 
 public class LineMessageEncoderDecoder implements MessageEncoderDecoder<String> {
 
@@ -21,6 +23,22 @@ public class LineMessageEncoderDecoder implements MessageEncoderDecoder<String>
         return null; //not a line yet
     }
 
+    @Override
+    public void decodeNextBytes(ByteBuffer buffer, Consumer<String> consumer) {
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            int end = indexOfNewLine(buffer, start, buffer.limit());
+            if (end < 0) { //not a line yet, keep what we have
+                pushBytes(buffer, buffer.remaining());
+                return;
+            }
+
+            pushBytes(buffer, end - start);
+            buffer.position(end + 1); //skip the '\n'
+            consumer.accept(popString());
+        }
+    }
+
     @Override
     public byte[] encode(String message) {
         return (message + "\n").getBytes(); //uses utf8 by default
@@ -34,6 +52,24 @@ public class LineMessageEncoderDecoder implements MessageEncoderDecoder<String>
         bytes[len++] = nextByte;
     }
 
+    private void pushBytes(ByteBuffer buffer, int count) {
+        if (len + count > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, len + count));
+        }
+
+        buffer.get(bytes, len, count);
+        len += count;
+    }
+
+    private static int indexOfNewLine(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     private String popString() {
         //notice that we explicitly requesting that the string will be decoded from UTF-8
         //this is not actually required as it is the default encoding in java.
@@ -9,6 +9,7 @@ import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.util.function.Consumer;
 
 public class ObjectEncoderDecoder implements MessageEncoderDecoder<Serializable> {
 
@@ -38,6 +39,32 @@ public class ObjectEncoderDecoder implements MessageEncoderDecoder<Serializable>
         return null;
     }
 
+    @Override
+    public void decodeNextBytes(ByteBuffer buffer, Consumer<Serializable> consumer) {
+        while (buffer.hasRemaining()) {
+            if (objectBytes == null) { //still reading the length
+                while (lengthBuffer.hasRemaining() && buffer.hasRemaining()) {
+                    lengthBuffer.put(buffer.get());
+                }
+                if (!lengthBuffer.hasRemaining()) {
+                    lengthBuffer.flip();
+                    objectBytes = new byte[lengthBuffer.getInt()];
+                    objectBytesIndex = 0;
+                    lengthBuffer.clear();
+                }
+            } else { //copy as much of the object as this buffer holds
+                int count = Math.min(buffer.remaining(), objectBytes.length - objectBytesIndex);
+                buffer.get(objectBytes, objectBytesIndex, count);
+                objectBytesIndex += count;
+                if (objectBytesIndex == objectBytes.length) {
+                    Serializable result = deserializeObject();
+                    objectBytes = null;
+                    consumer.accept(result);
+                }
+            }
+        }
+    }
+
     @Override
     public byte[] encode(Serializable message) {
         return serializeObject(message);
@@ -0,0 +1,296 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * The last messages relayed to every channel, kept as built MESSAGE frames so a late subscriber can be sent
+ * what it missed. Every relayed message gets a message-seq header from one counter shared by all channels,
+ * so sequence numbers only grow, also on a channel that was evicted and came back.
+ * <p>
+ * Memory is bounded three ways: per channel by maxMessages and maxChannelBytes, oldest messages first,
+ * over all channels by maxTotalBytes, least recently published channels first, and a channel nobody
+ * published to for idleMillis is dropped whole. The publishing threads evict, there is no timer.
+ * <p>
+ * A channel's messages are numbered, kept and replayed under the channel's lock, and a replaying subscriber
+ * subscribes under it too, so every message reaches it either in the replay or after it. A message still
+ * being delivered while its channel is replayed may come twice, the second copy after the replay and with
+ * a message-seq already seen.
+ */
+public class ChannelHistory {
+
+    // SUBSCRIBE headers asking for a replay, of the last N messages or of those after a message-seq
+    static final String REPLAY_LAST = "replay-last";
+    static final String REPLAY_SINCE = "replay-since";
+
+    private static final int DEFAULT_MAX_MESSAGES = 256;
+    private static final long DEFAULT_MAX_CHANNEL_BYTES = 256L << 10; //256k
+    private static final long DEFAULT_MAX_TOTAL_BYTES = 64L << 20; //64MB
+    private static final long DEFAULT_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    private static final int INITIAL_RING_SIZE = 16;
+
+    private final int maxMessages;
+    private final long maxChannelBytes;
+    private final long maxTotalBytes;
+    private final long idleNanos;
+    private final long sweepPeriodNanos;
+
+    private final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicBoolean sweeping = new AtomicBoolean(false);
+    private volatile long nextSweep;
+    private final LongAdder evictedChannels = new LongAdder();
+
+    public ChannelHistory() {
+        this(DEFAULT_MAX_MESSAGES, DEFAULT_MAX_CHANNEL_BYTES, DEFAULT_MAX_TOTAL_BYTES, DEFAULT_IDLE_MILLIS);
+    }
+
+    /**
+     * @param maxMessages most messages kept per channel, 0 to keep none and only number them
+     * @param maxChannelBytes most bytes of frames kept per channel, a larger frame is not kept at all
+     * @param maxTotalBytes most bytes of frames kept over all channels
+     * @param idleMillis a channel without a message for this long is dropped
+     */
+    public ChannelHistory(int maxMessages, long maxChannelBytes, long maxTotalBytes, long idleMillis) {
+        if (maxMessages < 0 || maxChannelBytes < 0 || maxTotalBytes < 0) {
+            throw new IllegalArgumentException("history limits must not be negative");
+        }
+        if (idleMillis < 1) {
+            throw new IllegalArgumentException("idleMillis must be positive: " + idleMillis);
+        }
+        this.maxMessages = maxMessages;
+        this.maxChannelBytes = maxChannelBytes;
+        this.maxTotalBytes = maxTotalBytes;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        // idle channels are looked for a few times per idle period, never more than once a second
+        this.sweepPeriodNanos = Math.max(idleNanos / 4, TimeUnit.SECONDS.toNanos(1));
+        this.nextSweep = System.nanoTime() + sweepPeriodNanos;
+    }
+
+    /**
+     * Builds the MESSAGE relaying a SEND to its destination, numbered and kept for late subscribers.
+     * Must be called before the message is broadcast, so a subscriber either finds it in a replay or gets it.
+     */
+    public StompFrame record(String destination, StompFrame send) {
+        long now = System.nanoTime();
+        StompFrame message;
+        while (true) {
+            Channel channel = channelOf(destination);
+            synchronized (channel) {
+                if (channel.evicted) {
+                    continue; // dropped between the lookup and the lock, a new one takes its place
+                }
+                long seq = sequence.incrementAndGet();
+                message = StompFrame.message(destination, seq, send);
+                channel.add(message, seq, now);
+                break;
+            }
+        }
+        if (totalBytes.get() > maxTotalBytes || now - nextSweep >= 0) {
+            sweep(now);
+        }
+        return message;
+    }
+
+    /**
+     * Subscribes, then hands the last count kept messages of the channel to the consumer, oldest first.
+     * @return the number handed over
+     */
+    public int replayLast(String destination, int count, Runnable subscribe, Consumer<StompFrame> to) {
+        return replay(destination, subscribe, channel -> Math.max(channel.size - count, 0), to);
+    }
+
+    /**
+     * Subscribes, then hands the kept messages of the channel numbered above sequence to the consumer, oldest first.
+     * @return the number handed over
+     */
+    public int replaySince(String destination, long sequence, Runnable subscribe, Consumer<StompFrame> to) {
+        return replay(destination, subscribe, channel -> {
+            int from = channel.size;
+            while (from > 0 && channel.sequenceAt(from - 1) > sequence) {
+                from--;
+            }
+            return from;
+        }, to);
+    }
+
+    /**
+     * @param from picks the index of the oldest message to replay
+     */
+    private int replay(String destination, Runnable subscribe, ToIntFunction<Channel> from, Consumer<StompFrame> to) {
+        while (true) {
+            // a channel is only ever made by record(), so subscribers can't fill the map with empty ones
+            Channel channel = channels.get(destination);
+            if (channel == null) {
+                subscribe.run();
+                if (!channels.containsKey(destination)) {
+                    return 0;
+                }
+                // a first message came in meanwhile and may have missed the subscription, so it is replayed
+                // under the channel's lock after all; subscribing twice is harmless
+                continue;
+            }
+            synchronized (channel) {
+                if (channel.evicted) {
+                    continue;
+                }
+                subscribe.run();
+                return channel.replay(from.applyAsInt(channel), to);
+            }
+        }
+    }
+
+    private Channel channelOf(String destination) {
+        Channel channel = channels.get(destination);
+        return channel != null ? channel : channels.computeIfAbsent(destination, Channel::new);
+    }
+
+    /**
+     * @return channels with a history, bytes kept, and channels evicted so far
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("channels", (long) channels.size());
+        stats.put("retainedBytes", totalBytes.get());
+        stats.put("evictedChannels", evictedChannels.sum());
+        return stats;
+    }
+
+    /**
+     * Drops the channels idle for too long, then, if still over maxTotalBytes, the least recently published
+     * ones until three quarters of it are left, so the next sweep is not due right away. One sweep at a time.
+     */
+    private void sweep(long now) {
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            nextSweep = now + sweepPeriodNanos;
+            for (Channel channel : channels.values()) {
+                if (now - channel.lastPublished > idleNanos) {
+                    evict(channel, now);
+                }
+            }
+            if (totalBytes.get() > maxTotalBytes) {
+                List<Channel> oldestFirst = new ArrayList<>(channels.values());
+                for (Channel channel : oldestFirst) {
+                    channel.age = now - channel.lastPublished; // fixed for the sort, publishing goes on meanwhile
+                }
+                oldestFirst.sort(Comparator.comparingLong((Channel channel) -> channel.age).reversed());
+                for (Channel channel : oldestFirst) {
+                    if (totalBytes.get() <= maxTotalBytes / 4 * 3) {
+                        break;
+                    }
+                    evict(channel, Long.MIN_VALUE);
+                }
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    /**
+     * @param idleSince evict only if the channel had no message since then, Long.MIN_VALUE to evict anyway
+     */
+    private void evict(Channel channel, long idleSince) {
+        synchronized (channel) {
+            if (channel.evicted || (idleSince != Long.MIN_VALUE && idleSince - channel.lastPublished <= idleNanos)) {
+                return; // published to since it was picked
+            }
+            channel.clear();
+            channel.evicted = true;
+        }
+        channels.remove(channel.destination, channel);
+        evictedChannels.increment();
+    }
+
+    /**
+     * The kept messages of one channel in a ring that grows up to maxMessages, guarded by the channel itself.
+     */
+    private final class Channel {
+
+        private final String destination;
+        private StompFrame[] ring = new StompFrame[0];
+        private long[] sequences = new long[0];
+        private int head = 0; // the oldest message
+        private int size = 0;
+        private long bytes = 0;
+        private boolean evicted = false;
+        private volatile long lastPublished = System.nanoTime(); // read by sweeps without the lock
+        private long age; // used by the sweeping thread only
+
+        Channel(String destination) {
+            this.destination = destination;
+        }
+
+        void add(StompFrame message, long seq, long now) {
+            lastPublished = now;
+            int length = message.toBytes().length;
+            if (maxMessages == 0 || length > maxChannelBytes) {
+                return;
+            }
+            while (size > 0 && (size == maxMessages || bytes + length > maxChannelBytes)) {
+                removeOldest();
+            }
+            if (size == ring.length) {
+                grow();
+            }
+            int slot = (head + size) % ring.length;
+            ring[slot] = message;
+            sequences[slot] = seq;
+            size++;
+            bytes += length;
+            totalBytes.addAndGet(length);
+        }
+
+        long sequenceAt(int index) {
+            return sequences[(head + index) % ring.length];
+        }
+
+        int replay(int from, Consumer<StompFrame> to) {
+            for (int i = from; i < size; i++) {
+                to.accept(ring[(head + i) % ring.length]);
+            }
+            return size - from;
+        }
+
+        void clear() {
+            while (size > 0) {
+                removeOldest();
+            }
+        }
+
+        private void removeOldest() {
+            int length = ring[head].toBytes().length;
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            size--;
+            bytes -= length;
+            totalBytes.addAndGet(-length);
+        }
+
+        private void grow() {
+            int capacity = Math.min(Math.max(ring.length * 2, INITIAL_RING_SIZE), maxMessages);
+            StompFrame[] grown = new StompFrame[capacity];
+            long[] grownSequences = new long[capacity];
+            for (int i = 0; i < size; i++) {
+                grown[i] = ring[(head + i) % ring.length];
+                grownSequences[i] = sequences[(head + i) % ring.length];
+            }
+            ring = grown;
+            sequences = grownSequences;
+            head = 0;
+        }
+    }
+}
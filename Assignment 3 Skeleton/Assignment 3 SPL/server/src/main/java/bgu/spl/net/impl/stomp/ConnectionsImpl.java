@@ -1,10 +1,18 @@
 package bgu.spl.net.impl.stomp;
 
+import bgu.spl.net.api.MessageEncoderDecoder;
+import bgu.spl.net.impl.data.ChannelRegistry;
 import bgu.spl.net.impl.data.Database;
-import bgu.spl.net.impl.data.User;
+import bgu.spl.net.srv.BufferPool;
 import bgu.spl.net.srv.Connections;
 import bgu.spl.net.srv.ConnectionHandler;
+import bgu.spl.net.srv.FanOut;
+import bgu.spl.net.srv.ServerMetrics;
+import bgu.spl.net.srv.SharedFrame;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class ConnectionsImpl<T> implements Connections<T> {
@@ -12,6 +20,41 @@ public class ConnectionsImpl<T> implements Connections<T> {
     // acts as a "phone book" mapping connection IDs to their network handlers
     private ConcurrentHashMap<Integer, ConnectionHandler<T>> connectionHandlers = new ConcurrentHashMap<>();
 
+    // used only for encode(), so broadcasts are encoded once instead of once per subscriber
+    private final MessageEncoderDecoder<T> encoder;
+
+    // takes over broadcasts to large channels, so they don't hold the sender's task for the whole loop
+    private final FanOut fanOut;
+
+    // broadcasts are copied once into a pooled frame all subscribers write from, null to pass the caller's buffer
+    private final BufferPool buffers;
+
+    public ConnectionsImpl() {
+        this(null);
+    }
+
+    public ConnectionsImpl(MessageEncoderDecoder<T> encoder) {
+        this(encoder, new FanOut());
+    }
+
+    public ConnectionsImpl(MessageEncoderDecoder<T> encoder, BufferPool buffers) {
+        this(encoder, new FanOut(), buffers);
+    }
+
+    public ConnectionsImpl(MessageEncoderDecoder<T> encoder, FanOut fanOut) {
+        this(encoder, fanOut, null);
+    }
+
+    public ConnectionsImpl(MessageEncoderDecoder<T> encoder, FanOut fanOut, BufferPool buffers) {
+        this.encoder = encoder;
+        this.fanOut = fanOut;
+        this.buffers = buffers;
+    }
+
+    public FanOut getFanOut() {
+        return fanOut;
+    }
+
     @Override
     public boolean send(int connectionId, T msg) {
         // send message to specific connection
@@ -23,28 +66,110 @@ public class ConnectionsImpl<T> implements Connections<T> {
         return false;
     }
 
+    @Override
+    public boolean send(int connectionId, T msg, Runnable written) {
+        ConnectionHandler<T> handler = connectionHandlers.get(connectionId);
+        if (handler != null) {
+            handler.send(msg, written);
+            return true;
+        }
+        return false;
+    }
+
 
     @Override
     public void send(String channel, T msg) {// send message to all users that subscribed to this channel
-        Database db = Database.getInstance();
-        for (Map.Entry<Integer, ConnectionHandler<T>> entry : connectionHandlers.entrySet()) {
-            int connId = entry.getKey();
-            ConnectionHandler<T> handler = entry.getValue();
-            User user = db.getUserByConnectionId(connId);
-            if (user != null && user.getSubscribedChannels().containsKey(channel)) {
+        if (encoder != null) {
+            sendEncoded(channel, ByteBuffer.wrap(encoder.encode(msg)).asReadOnlyBuffer());
+            return;
+        }
+
+        // only the channel's subscribers are visited, not every open connection.
+        // never in parallel here: encoding the same message on several threads at once is not safe
+        for (Integer connId : Database.getInstance().getChannelSubscribers(channel)) {
+            ConnectionHandler<T> handler = connectionHandlers.get(connId);
+            if (handler != null) {
                 handler.send(msg);
             }
         }
     }
 
+    @Override
+    public void sendEncoded(String channel, ByteBuffer encoded) {
+        if (buffers != null && encoded.remaining() <= BufferPool.maxSize()) {
+            sendShared(channel, buffers.share(encoded));
+            return;
+        }
+        Set<Integer> subscribers = Database.getInstance().getChannelSubscribers(channel);
+        // a bound, counting the subscribers of a channel and its patterns would walk all of them
+        if (fanOut.isParallel(channel, ChannelRegistry.sizeBound(subscribers))) {
+            // handlers copy the shared buffer with absolute reads, so the chunks can share it
+            fanOut.broadcast(channel, subscribers, connId -> sendEncoded(connId, encoded));
+            return;
+        }
+        for (Integer connId : subscribers) {
+            sendEncoded(connId, encoded);
+        }
+    }
+
+    private void sendEncoded(int connectionId, ByteBuffer encoded) {
+        ConnectionHandler<T> handler = connectionHandlers.get(connectionId);
+        if (handler != null) {
+            handler.sendEncoded(encoded);
+        }
+    }
+
+    /**
+     * Hands the frame to every subscriber, each taking its own reference, then drops the caller's.
+     */
+    private void sendShared(String channel, SharedFrame frame) {
+        Set<Integer> subscribers = Database.getInstance().getChannelSubscribers(channel);
+        if (fanOut.isParallel(channel, ChannelRegistry.sizeBound(subscribers))) {
+            // the frame has to outlive the chunks, its reference is dropped once all of them delivered
+            fanOut.broadcast(channel, subscribers, connId -> sendShared(connId, frame), frame::release);
+            return;
+        }
+        for (Integer connId : subscribers) {
+            sendShared(connId, frame);
+        }
+        frame.release();
+    }
+
+    private void sendShared(int connectionId, SharedFrame frame) {
+        ConnectionHandler<T> handler = connectionHandlers.get(connectionId);
+        if (handler != null) {
+            handler.sendShared(frame);
+        }
+    }
+
     @Override
     public void disconnect(int connectionId) {
-        connectionHandlers.remove(connectionId);
+        if (connectionHandlers.remove(connectionId) != null) {
+            ServerMetrics.getInstance().connectionClosed();
+            // closed connections must leave the channel index as well
+            Database.getInstance().logout(connectionId);
+        }
     }
 
     // helper method - this method is called by the protocol when connections start)
     public void addConnection(int connectionId, ConnectionHandler<T> handler) {
-        connectionHandlers.put(connectionId, handler);
+        if (connectionHandlers.put(connectionId, handler) == null) {
+            ServerMetrics.getInstance().connectionOpened();
+        }
+    }
+
+    /**
+     * @return frames waiting to be written per connection, for the connections that have any
+     */
+    public Map<Integer, Integer> getQueuedFrames() {
+        Map<Integer, Integer> depths = new HashMap<>();
+        connectionHandlers.forEach((connId, handler) -> {
+            int queued = handler.getQueuedFrames();
+            if (queued > 0) {
+                depths.put(connId, queued);
+            }
+        });
+        return depths;
     }
 
 
@@ -0,0 +1,87 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free table of canonical strings looked up by their ASCII bytes.
+ * A hit returns the shared instance without allocating, so hot header names and
+ * destinations are not decoded again for every frame. Entries are never evicted;
+ * once the table is crowded new strings are simply decoded without being interned.
+ */
+class Interner {
+
+    private static final int MAX_PROBES = 8;
+
+    private final AtomicReferenceArray<String> table;
+    private final int mask;
+    private final int maxLength;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     * @param maxLength longer strings are never interned
+     */
+    Interner(int capacity, int maxLength) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.table = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.maxLength = maxLength;
+    }
+
+    String intern(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return intern(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return the canonical string for bytes[from, to)
+     */
+    String intern(byte[] bytes, int from, int to) {
+        int len = to - from;
+        if (len > maxLength) {
+            return decode(bytes, from, to);
+        }
+
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            byte b = bytes[i];
+            if (b < 0) { // not ASCII - the char-by-char comparison below would not hold
+                return decode(bytes, from, to);
+            }
+            hash = 31 * hash + b;
+        }
+        hash ^= hash >>> 16;
+
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            int slot = (hash + probe) & mask;
+            String existing = table.get(slot);
+            if (existing == null) {
+                String created = decode(bytes, from, to);
+                if (table.compareAndSet(slot, null, created)) {
+                    return created;
+                }
+                existing = table.get(slot);
+            }
+            if (matches(existing, bytes, from, len)) {
+                return existing;
+            }
+        }
+        return decode(bytes, from, to);
+    }
+
+    private static boolean matches(String s, byte[] bytes, int from, int len) {
+        if (s.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (s.charAt(i) != bytes[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String decode(byte[] bytes, int from, int to) {
+        return new String(bytes, from, to - from, StandardCharsets.UTF_8);
+    }
+}
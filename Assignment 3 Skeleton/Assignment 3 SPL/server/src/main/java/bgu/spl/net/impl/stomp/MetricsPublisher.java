@@ -0,0 +1,36 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.ServerMetrics;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends {@link ServerMetrics#render()} to the subscribers of /app/metrics at a fixed period.
+ * Nothing is rendered while the channel has no subscribers.
+ */
+public class MetricsPublisher {
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "metrics-publisher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public MetricsPublisher(Connections<StompFrame> connections, long periodMs) {
+        timer.scheduleAtFixedRate(() -> publish(connections), periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static void publish(Connections<StompFrame> connections) {
+        String channel = StompMessagingProtocolImpl.METRICS_DESTINATION;
+        if (!Database.getInstance().getChannelSubscribers(channel).isEmpty()) {
+            connections.send(channel, StompFrame.message(channel, ServerMetrics.getInstance().render()));
+        }
+    }
+
+    public void close() {
+        timer.shutdownNow();
+    }
+}
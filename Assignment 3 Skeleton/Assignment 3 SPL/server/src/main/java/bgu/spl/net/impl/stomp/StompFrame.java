@@ -0,0 +1,297 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A STOMP frame backed by its wire bytes (including the terminating \0).
+ * The command and headers are parsed on demand, and the body is never decoded
+ * unless asked for, so relaying a frame costs a copy of its body and nothing more.
+ * Built frames never change and can be shared between connections; the lazy parsing
+ * itself is not thread safe, a received frame is parsed by the connection that read it.
+ */
+public class StompFrame {
+
+    private static final Interner INTERNER = new Interner(4096, 128);
+    private static final String DESTINATION = "destination";
+    // numbers the messages relayed to a channel, see ChannelHistory
+    static final String MESSAGE_SEQ = "message-seq";
+
+    static {
+        // common header names and commands share one instance with everything the interner returns
+        for (String common : new String[]{"CONNECT", "STOMP", "CONNECTED", "SEND", "SUBSCRIBE", "UNSUBSCRIBE",
+                "DISCONNECT", "MESSAGE", "RECEIPT", "ERROR", DESTINATION, "id", "receipt", "receipt-id", "login",
+                "passcode", "filename", "accept-version", "host", "version", "message", "content-length",
+                "content-type", "subscription", "message-id", MESSAGE_SEQ}) {
+            INTERNER.intern(common);
+        }
+    }
+
+    private static final StompFrame CONNECTED = build("CONNECTED", new String[]{"version", "1.2"}, null, 0, 0);
+    private static final byte[] MESSAGE_HEAD = ("MESSAGE\n" + DESTINATION + ":").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEQ_HEAD = (MESSAGE_SEQ + ":").getBytes(StandardCharsets.UTF_8);
+
+    private final byte[] bytes;
+    private final int end; // index of the terminating \0
+
+    // parsed lazily
+    private String command;
+    private int headersStart = -1;
+    private int[] headerOffsets; // nameStart, nameEnd, valueStart, valueEnd per header
+    private int headerCount;
+    private int bodyStart;
+
+    /**
+     * @param bytes the whole frame, whose last byte is the terminating \0. Kept, not copied.
+     */
+    StompFrame(byte[] bytes) {
+        this.bytes = bytes;
+        this.end = bytes.length - 1;
+    }
+
+    public static StompFrame connected() {
+        return CONNECTED;
+    }
+
+    public static StompFrame error(String message) {
+        return build("ERROR", new String[]{"message", message}, null, 0, 0);
+    }
+
+    public static StompFrame receipt(String receiptId) {
+        return build("RECEIPT", new String[]{"receipt-id", receiptId}, null, 0, 0);
+    }
+
+    public static StompFrame message(String destination, String body) {
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        return build("MESSAGE", new String[]{DESTINATION, destination}, bodyBytes, 0, bodyBytes.length);
+    }
+
+    /**
+     * @param headers extra header names and values, alternating, written after the destination
+     */
+    public static StompFrame message(String destination, String body, String... headers) {
+        String[] all = new String[headers.length + 2];
+        all[0] = DESTINATION;
+        all[1] = destination;
+        System.arraycopy(headers, 0, all, 2, headers.length);
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        return build("MESSAGE", all, bodyBytes, 0, bodyBytes.length);
+    }
+
+    /**
+     * Builds the MESSAGE frame relaying a SEND frame, copying the sender's body bytes as they are.
+     * The frame is written straight into its one array, the relay allocates nothing else.
+     */
+    public static StompFrame message(String destination, StompFrame send) {
+        return message(destination, -1, send);
+    }
+
+    /**
+     * Like {@link #message(String, StompFrame)}, numbered by a message-seq header unless sequence is negative.
+     */
+    public static StompFrame message(String destination, long sequence, StompFrame send) {
+        send.parseHeaders();
+        if (!isAscii(destination)) {
+            String[] headers = sequence < 0
+                    ? new String[]{DESTINATION, destination}
+                    : new String[]{DESTINATION, destination, MESSAGE_SEQ, Long.toString(sequence)};
+            return build("MESSAGE", headers, send.bytes, send.bodyStart, send.end);
+        }
+        int bodyLength = send.end - send.bodyStart;
+        int digits = sequence < 0 ? 0 : digits(sequence);
+        int seqLength = sequence < 0 ? 0 : SEQ_HEAD.length + digits + 1;
+        byte[] frame = new byte[MESSAGE_HEAD.length + destination.length() + 2 + seqLength + bodyLength + 1]; // last byte stays \0
+        System.arraycopy(MESSAGE_HEAD, 0, frame, 0, MESSAGE_HEAD.length);
+        int pos = MESSAGE_HEAD.length;
+        for (int i = 0; i < destination.length(); i++) {
+            frame[pos++] = (byte) destination.charAt(i);
+        }
+        frame[pos++] = '\n';
+        if (sequence >= 0) {
+            System.arraycopy(SEQ_HEAD, 0, frame, pos, SEQ_HEAD.length);
+            pos += SEQ_HEAD.length;
+            // written right to left, without a String
+            long rest = sequence;
+            for (int i = pos + digits - 1; i >= pos; i--, rest /= 10) {
+                frame[i] = (byte) ('0' + rest % 10);
+            }
+            pos += digits;
+            frame[pos++] = '\n';
+        }
+        frame[pos++] = '\n';
+        System.arraycopy(send.bytes, send.bodyStart, frame, pos, bodyLength);
+        return new StompFrame(frame);
+    }
+
+    /**
+     * @return the command line of the frame, or an empty string for an empty frame
+     */
+    public String getCommand() {
+        if (command == null) {
+            int from = skipEndOfLines(0);
+            int to = lineEnd(from);
+            headersStart = Math.min(to + 1, end);
+            command = INTERNER.intern(bytes, from, trimCarriageReturn(from, to));
+        }
+        return command;
+    }
+
+    /**
+     * @param name the header to look up
+     * @return the trimmed value of the first header with this name, or null if there is none
+     */
+    public String getHeader(String name) {
+        parseHeaders();
+        for (int i = 0; i < headerCount; i++) {
+            int base = i * 4;
+            if (nameEquals(headerOffsets[base], headerOffsets[base + 1], name)) {
+                int from = headerOffsets[base + 2];
+                int to = headerOffsets[base + 3];
+                while (from < to && isBlank(bytes[from])) from++;
+                while (to > from && isBlank(bytes[to - 1])) to--;
+                return DESTINATION.equals(name)
+                        ? INTERNER.intern(bytes, from, to)
+                        : new String(bytes, from, to - from, StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    public int getBodyLength() {
+        parseHeaders();
+        return end - bodyStart;
+    }
+
+    /**
+     * @return the body decoded as UTF-8. Relaying the frame does not need this.
+     */
+    public String getBody() {
+        parseHeaders();
+        return new String(bytes, bodyStart, end - bodyStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the wire bytes of the frame including its \0 terminator. Shared - must not be modified.
+     */
+    public byte[] toBytes() {
+        return bytes;
+    }
+
+    public boolean isEmpty() {
+        return getCommand().isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, end, StandardCharsets.UTF_8);
+    }
+
+    private void parseHeaders() {
+        if (headerOffsets != null) {
+            return;
+        }
+        getCommand();
+
+        int[] offsets = new int[4 * 4];
+        int count = 0;
+        int pos = headersStart;
+        bodyStart = end;
+        while (pos < end) {
+            int to = lineEnd(pos);
+            int lineTo = trimCarriageReturn(pos, to);
+            if (lineTo == pos) { // empty line - the body follows
+                bodyStart = Math.min(to + 1, end);
+                break;
+            }
+            int colon = indexOf(pos, lineTo, (byte) ':');
+            if (colon >= 0) {
+                if ((count + 1) * 4 > offsets.length) {
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+                offsets[count * 4] = pos;
+                offsets[count * 4 + 1] = colon;
+                offsets[count * 4 + 2] = colon + 1;
+                offsets[count * 4 + 3] = lineTo;
+                count++;
+            }
+            pos = to + 1;
+        }
+        headerCount = count;
+        headerOffsets = offsets;
+    }
+
+    private boolean nameEquals(int from, int to, String name) {
+        if (to - from != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (bytes[from + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int skipEndOfLines(int pos) {
+        // STOMP allows EOLs (heart-beats) between frames
+        while (pos < end && (bytes[pos] == '\n' || bytes[pos] == '\r')) pos++;
+        return pos;
+    }
+
+    private int lineEnd(int from) {
+        int newLine = indexOf(from, end, (byte) '\n');
+        return newLine < 0 ? end : newLine;
+    }
+
+    private int trimCarriageReturn(int from, int to) {
+        return to > from && bytes[to - 1] == '\r' ? to - 1 : to;
+    }
+
+    private int indexOf(int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static StompFrame build(String command, String[] headers, byte[] body, int bodyFrom, int bodyTo) {
+        StringBuilder head = new StringBuilder(64).append(command).append('\n');
+        for (int i = 0; i < headers.length; i += 2) {
+            head.append(headers[i]).append(':').append(headers[i + 1]).append('\n');
+        }
+        head.append('\n');
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.UTF_8);
+
+        int bodyLength = body == null ? 0 : bodyTo - bodyFrom;
+        byte[] frame = new byte[headBytes.length + bodyLength + 1]; // last byte stays \0
+        System.arraycopy(headBytes, 0, frame, 0, headBytes.length);
+        if (bodyLength > 0) {
+            System.arraycopy(body, bodyFrom, frame, headBytes.length, bodyLength);
+        }
+        return new StompFrame(frame);
+    }
+}
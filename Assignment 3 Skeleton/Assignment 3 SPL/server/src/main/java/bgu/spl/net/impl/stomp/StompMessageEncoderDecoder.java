@@ -1,21 +1,20 @@
 package bgu.spl.net.impl.stomp;
 
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.function.Consumer;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
 
-public class StompMessageEncoderDecoder implements MessageEncoderDecoder<String>{
+public class StompMessageEncoderDecoder implements MessageEncoderDecoder<StompFrame>{
     
     private byte[] bytes = new byte[1 << 10]; // 1KB buffer
     private int len = 0;
     
     @Override
-    public String decodeNextByte(byte nextByte) {
+    public StompFrame decodeNextByte(byte nextByte) {
         if (nextByte == '\0') {// message is complete
-            String result = new String(bytes, 0, len, StandardCharsets.UTF_8);
-            len = 0;
-            return result;
+            return popFrame();
         }
 
         // else, keep accumulating bytes
@@ -28,8 +27,63 @@ public class StompMessageEncoderDecoder implements MessageEncoderDecoder<String>
     }
 
     @Override
-    public byte[] encode(String message) {
-        return (message + "\0").getBytes(StandardCharsets.UTF_8);// \0 is added to indicate end of message for the decoder
+    public void decodeNextBytes(ByteBuffer buffer, Consumer<StompFrame> consumer) {
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            int end = indexOfNull(buffer, start, buffer.limit());
+            if (end < 0) {// no terminator - keep the partial frame for the next read
+                pushBytes(buffer, buffer.remaining());
+                return;
+            }
+
+            StompFrame result;
+            if (len == 0) {// the whole frame is in the buffer, copy it straight into its own array
+                byte[] frame = new byte[end - start + 1];// last byte stays \0
+                buffer.get(frame, 0, end - start);
+                result = end > start ? new StompFrame(frame) : null;
+            } else {
+                pushBytes(buffer, end - start);
+                result = popFrame();
+            }
+            buffer.position(end + 1);// skip the \0
+            if (result != null) {
+                consumer.accept(result);
+            }
+        }
+    }
+
+    /**
+     * @return the frame's wire bytes. They are shared with the frame, so encoding never copies.
+     */
+    @Override
+    public byte[] encode(StompFrame message) {
+        return message.toBytes();// already ends with the \0 the decoder looks for
+    }
+
+    private StompFrame popFrame() {
+        if (len == 0) {// empty frames (e.g. a doubled \0) carry nothing
+            return null;
+        }
+        StompFrame result = new StompFrame(Arrays.copyOf(bytes, len + 1));// padding byte is the \0
+        len = 0;
+        return result;
+    }
+
+    private static int indexOfNull(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == '\0') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void pushBytes(ByteBuffer buffer, int count) {
+        if (len + count > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, len + count));// increase buffer size
+        }
+        buffer.get(bytes, len, count);
+        len += count;
     }
 
 }
@@ -1,47 +1,61 @@
 package bgu.spl.net.impl.stomp;
 
 import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.impl.data.DestinationTrie;
 import bgu.spl.net.impl.data.LoginStatus;
+import bgu.spl.net.impl.data.ReportCursor;
 import bgu.spl.net.impl.data.User;
 import bgu.spl.net.api.StompMessagingProtocol;
-import bgu.spl.net.impl.data.LoginStatus;
 import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.ServerMetrics;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StompMessagingProtocolImpl implements StompMessagingProtocol<StompFrame> {
 
-public class StompMessagingProtocolImpl implements StompMessagingProtocol<String> {
+    // a SEND to /app/report with this header gets the report in pages of about this many characters
+    private static final String REPORT_PAGE_SIZE = "report-page-size";
+    // a SEND here answers with the server's meters, see ServerMetrics#render()
+    static final String METRICS_DESTINATION = "/app/metrics";
+    // shared by the protocols built without a history of their own
+    private static final ChannelHistory DEFAULT_HISTORY = new ChannelHistory();
 
+    private final ChannelHistory history;
     private int connectionId;
-    private Connections<String> connections;
+    private Connections<StompFrame> connections;
     private boolean shouldTerminate = false;
+    private ReportPager lastReport; // the report paged out last, a new one waits behind it
 
+    public StompMessagingProtocolImpl() {
+        this(DEFAULT_HISTORY);
+    }
+
+    /**
+     * @param history numbers and keeps the relayed messages, shared by all the connections of a server
+     */
+    public StompMessagingProtocolImpl(ChannelHistory history) {
+        this.history = history;
+    }
 
     @Override
-    public void start(int connectionId, Connections<String> connections) {
+    public void start(int connectionId, Connections<StompFrame> connections) {
         this.connectionId = connectionId;
         this.connections = connections;
     }
 
     @Override
-    public String process(String message) {
-        String[] lines = message.split("\n");
-        String command = lines[0];  // "CONNECT"
+    public StompFrame process(StompFrame message) {
+        // only the command line is parsed here, headers are looked up by the branch that needs them
+        String command = message.getCommand();  // "CONNECT"
+        ServerMetrics.getInstance().command(command);
 
         // For CONNECT command, find login and passcode
         if (command.equals("CONNECT")) {
-            String login = null;
-            String passcode = null;
-        
-            for (int i = 1; i < lines.length; i++) {
-                if (lines[i].startsWith("login:")) {
-                    login = lines[i].substring(6); // Skip "login:"
-                }
-                if (lines[i].startsWith("passcode:")) {
-                    passcode = lines[i].substring(9); // Skip "passcode:"
-                }
-            }
+            String login = message.getHeader("login");
+            String passcode = message.getHeader("passcode");
 
             if(login==null || passcode==null){
                 // send ERROR and terminate
-                connections.send(connectionId, "ERROR\nmessage:Missing credentials\n\n\0");
+                connections.send(connectionId, StompFrame.error("Missing credentials"));
                 shouldTerminate = true;
                 return null;
             }
@@ -52,17 +66,13 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             if (status == LoginStatus.LOGGED_IN_SUCCESSFULLY || 
                 status == LoginStatus.ADDED_NEW_USER) {
                 // success - Send CONNECTED
-                connections.send(connectionId, "CONNECTED\nversion:1.2\n\n\0");
+                connections.send(connectionId, StompFrame.connected());
             } else {
                 // failure - Send ERROR and terminate
-                connections.send(connectionId, "ERROR\nmessage:Login failed\n\n\0");
+                connections.send(connectionId, StompFrame.error("Login failed"));
                 shouldTerminate = true;
                 return null;
                 }
-
-
-            System.out.println("Login: " + login);
-            System.out.println("Passcode: " + passcode);
         }
 
         else if(command.equals("DISCONNECT")){
@@ -72,48 +82,46 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
 
         else if(command.equals("SEND")){
             // find destination header and optional filename
-            String destination = null;
-            String filename = null;
-            int bodyStartLine = -1;
-
-            for (int i = 1; i < lines.length; i++) {
-                if (lines[i].startsWith("destination:")) {
-                    destination = lines[i].substring(12).trim();
-                }
-                if (lines[i].startsWith("filename:")) {
-                    filename = lines[i].substring(9).trim();
-                }
-                if (lines[i].isEmpty()) {
-                    bodyStartLine = i + 1; // Body starts after empty line
-                    break;
-                }
-            }
+            String destination = message.getHeader("destination");
+            String filename = message.getHeader("filename");
 
             if (destination == null) {
-                connections.send(connectionId, "ERROR\nmessage:Missing destination\n\n\0");
+                connections.send(connectionId, StompFrame.error("Missing destination"));
                 shouldTerminate = true;
                 return null;
             }
 
-            // validate if sender is subscribed to the channel
-            User sender = Database.getInstance().getUserByConnectionId(connectionId);
-            if (sender == null || !sender.getSubscribedChannels().containsKey(destination)) {
-                connections.send(connectionId, "ERROR\nmessage:User not subscribed to channel\n\n\0");
+            // a pattern is only for subscribing, messages go to one channel
+            if (DestinationTrie.isPattern(destination)) {
+                connections.send(connectionId, StompFrame.error("Cannot send to a destination pattern"));
                 shouldTerminate = true;
                 return null;
             }
 
-            // extract body (everything after empty line)
-            StringBuilder body = new StringBuilder();
-            for (int i = bodyStartLine; i < lines.length; i++) {
-                body.append(lines[i]).append("\n");
+            // validate if sender is subscribed to the channel, directly or through a pattern
+            User sender = Database.getInstance().getUserByConnectionId(connectionId);
+            if (sender == null || !Database.getInstance().isSubscribed(connectionId, destination)) {
+                connections.send(connectionId, StompFrame.error("User not subscribed to channel"));
+                shouldTerminate = true;
+                return null;
             }
 
             // special endpoint to request server report
             if (destination.equals("/app/report")) {
-                String report = Database.getInstance().generateReport();
-                String reply = "MESSAGE\ndestination:/app/report\n\n" + report + "\0";
-                connections.send(connectionId, reply);
+                String pageSize = message.getHeader(REPORT_PAGE_SIZE);
+                if (pageSize == null) {
+                    String report = Database.getInstance().generateReport();
+                    connections.send(connectionId, StompFrame.message("/app/report", report));
+                } else if (!sendReportPages(pageSize)) {
+                    connections.send(connectionId, StompFrame.error("Invalid " + REPORT_PAGE_SIZE));
+                    shouldTerminate = true;
+                }
+                return null;
+            }
+
+            // special endpoint to request the server's meters, subscribers of it also get them every second
+            if (destination.equals(METRICS_DESTINATION)) {
+                connections.send(connectionId, StompFrame.message(METRICS_DESTINATION, ServerMetrics.getInstance().render()));
                 return null;
             }
 
@@ -122,37 +130,49 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
                 Database.getInstance().trackFileUpload(sender.name, filename, destination);
             }
 
-            // build and broadcast MESSAGE frame
-            String messageFrame = "MESSAGE\ndestination:" + destination + "\n\n" + body.toString() + "\0";
+            // build and broadcast MESSAGE frame - the body bytes are relayed without being decoded.
+            // kept first, so a concurrent late subscriber finds it in its replay or is sent it
+            StompFrame messageFrame = history.record(destination, message);
             connections.send(destination, messageFrame);
         }
 
         else if(command.equals("SUBSCRIBE")){
             // Find destination and id headers
-            String destination = null;
-            String id = null;
-            String receipt = null;
-
-            for (int i = 1; i < lines.length; i++) {
-                if (lines[i].startsWith("destination:")) {
-                destination = lines[i].substring(12).trim();
-                }
-                if (lines[i].startsWith("id:")) {
-                    id = lines[i].substring(3).trim();
-                }
-                if (lines[i].startsWith("receipt:")) {
-                    receipt = lines[i].substring(8).trim();
-                }
-            }
+            String destination = message.getHeader("destination");
+            String id = message.getHeader("id");
+            String receipt = message.getHeader("receipt");
 
             if(destination == null || id == null){
-                connections.send(connectionId, "ERROR\nmessage:Missing subscription headers\n\n\0");
+                connections.send(connectionId, StompFrame.error("Missing subscription headers"));
                 shouldTerminate = true;
                 return null;
             }
-            Database.getInstance().subscribe(connectionId, destination, id);
+            // "*" stands for one segment anywhere, "**" for the rest of the destination, so it must come last
+            if (DestinationTrie.isPattern(destination) && !DestinationTrie.isValidPattern(destination)) {
+                connections.send(connectionId, StompFrame.error("Invalid destination pattern"));
+                shouldTerminate = true;
+                return null;
+            }
+            String replayLast = message.getHeader(ChannelHistory.REPLAY_LAST);
+            String replaySince = message.getHeader(ChannelHistory.REPLAY_SINCE);
+            String replayError = replayLast == null && replaySince == null ? null : checkReplay(destination, replayLast, replaySince);
+            if (replayError != null) {
+                connections.send(connectionId, StompFrame.error(replayError));
+                shouldTerminate = true;
+                return null;
+            }
+            // with a replay the subscription is made under the channel's history lock, see ChannelHistory.
+            // the missed messages go out before the RECEIPT
+            Runnable subscribe = () -> Database.getInstance().subscribe(connectionId, destination, id);
+            if (replayLast != null) {
+                history.replayLast(destination, Integer.parseInt(replayLast), subscribe, frame -> connections.send(connectionId, frame));
+            } else if (replaySince != null) {
+                history.replaySince(destination, Long.parseLong(replaySince), subscribe, frame -> connections.send(connectionId, frame));
+            } else {
+                subscribe.run();
+            }
             if (receipt != null) {
-                connections.send(connectionId, "RECEIPT\nreceipt-id:" + receipt + "\n\n\0");
+                connections.send(connectionId, StompFrame.receipt(receipt));
             }
         
         
@@ -162,35 +182,154 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
 
         else if (command.equals("UNSUBSCRIBE")) {
             // Find id and receipt headers
-            String id = null;
-            String receipt = null;
-    
-            for (int i = 1; i < lines.length; i++) {
-                if (lines[i].startsWith("id:")) {
-                id = lines[i].substring(3).trim();
-                }
-                if (lines[i].startsWith("receipt:")) {
-                receipt = lines[i].substring(8).trim();
-                }
-            }
+            String id = message.getHeader("id");
+            String receipt = message.getHeader("receipt");
     
             // TODO: validate id and remove subscription.
             // Optionally send RECEIPT if provided.
             if(id == null){
-                connections.send(connectionId, "ERROR\nmessage:Missing subscription id\n\n\0");
+                connections.send(connectionId, StompFrame.error("Missing subscription id"));
                 shouldTerminate = true;
                 return null;
             }
             Database.getInstance().unsubscribe(connectionId, id);
             if (receipt != null) {
-                connections.send(connectionId, "RECEIPT\nreceipt-id:" + receipt + "\n\n\0");
+                connections.send(connectionId, StompFrame.receipt(receipt));
             }
         }
         return null;  // STOMP sends responses via connections, not return values
     }
 
+    /**
+     * Sends the report as a series of MESSAGE frames, each rendered only once the connection wrote the
+     * previous one, see {@link ReportPager}. Every page carries report-page (counting from 1) and report-more,
+     * which is false on the last page.
+     * @return false if the page size is not a positive number
+     */
+    private boolean sendReportPages(String pageSize) {
+        int maxChars;
+        try {
+            maxChars = Integer.parseInt(pageSize);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (maxChars < 1) {
+            return false;
+        }
+
+        ReportPager report = new ReportPager(Database.getInstance().openReport(), maxChars);
+        if (lastReport == null || !lastReport.then(report)) {
+            report.run();
+        }
+        lastReport = report;
+        return true;
+    }
+
+    /**
+     * Pages one report out, rendering the next page only once the connection wrote the previous one, so the
+     * report never sits whole in the write queue and a small page size doesn't trip the outbound limits.
+     * A report asked for meanwhile starts after the last page, so the pages of two reports never interleave.
+     */
+    private final class ReportPager implements Runnable {
+
+        private final ReportCursor cursor;
+        private final int maxChars;
+        private final StringBuilder page;
+        private int pageNumber = 1;
+        // pages due: the first one, then one per written callback, which may come while a page is being sent
+        private final AtomicInteger due = new AtomicInteger();
+        private boolean done = false; //guarded by this
+        private ReportPager next; //guarded by this
+
+        ReportPager(ReportCursor cursor, int maxChars) {
+            this.cursor = cursor;
+            this.maxChars = maxChars;
+            this.page = new StringBuilder(Math.min(maxChars, 1 << 16) + 256);
+        }
+
+        /**
+         * Sends the first page, then the next one each time the previous one was written.
+         */
+        @Override
+        public void run() {
+            // a callback run from inside sendPage only counts, the loop below sends its page
+            if (due.getAndIncrement() > 0) {
+                return;
+            }
+            do {
+                sendPage();
+            } while (due.decrementAndGet() > 0);
+        }
+
+        private void sendPage() {
+            page.setLength(0);
+            boolean more = cursor.fill(page, maxChars);
+            StompFrame frame = StompFrame.message("/app/report", page.toString(),
+                    "report-page", Integer.toString(pageNumber++),
+                    "report-more", Boolean.toString(more));
+            if (more) {
+                connections.send(connectionId, frame, this);
+                return;
+            }
+            connections.send(connectionId, frame);
+            ReportPager following;
+            synchronized (this) {
+                done = true;
+                following = next;
+            }
+            if (following != null) {
+                following.run();
+            }
+        }
+
+        /**
+         * @return false if this report is out already, so the following one can start right away
+         */
+        synchronized boolean then(ReportPager following) {
+            if (done) {
+                return false;
+            }
+            next = following;
+            return true;
+        }
+    }
+
+    /**
+     * @return why the replay headers of a SUBSCRIBE can't be served, or null if they can
+     */
+    private static String checkReplay(String destination, String replayLast, String replaySince) {
+        if (replayLast != null && replaySince != null) {
+            return "Use either " + ChannelHistory.REPLAY_LAST + " or " + ChannelHistory.REPLAY_SINCE;
+        }
+        if (DestinationTrie.isPattern(destination)) {
+            return "Replay needs a single channel, not a pattern";
+        }
+        try {
+            if (replayLast != null ? Integer.parseInt(replayLast) < 1 : Long.parseLong(replaySince) < 0) {
+                return "Invalid " + (replayLast != null ? ChannelHistory.REPLAY_LAST : ChannelHistory.REPLAY_SINCE);
+            }
+        } catch (NumberFormatException e) {
+            return "Invalid " + (replayLast != null ? ChannelHistory.REPLAY_LAST : ChannelHistory.REPLAY_SINCE);
+        }
+        return null;
+    }
+
+    /**
+     * Subscriptions only touch in-memory maps and at most queue a RECEIPT, so they may run on an I/O thread.
+     * CONNECT, DISCONNECT and SEND reach SQL, the report or a channel's subscribers and are left to the workers,
+     * so is a SUBSCRIBE asking for a replay, which may queue a channel's whole history.
+     */
+    @Override
+    public boolean isCheap(StompFrame message) {
+        String command = message.getCommand();
+        if (command.equals("SUBSCRIBE")) {
+            return message.getHeader(ChannelHistory.REPLAY_LAST) == null && message.getHeader(ChannelHistory.REPLAY_SINCE) == null;
+        }
+        return command.equals("UNSUBSCRIBE");
+    }
+
     @Override
     public boolean shouldTerminate() {
         return shouldTerminate;
     }
-}
\ No newline at end of file
+}
@@ -1,48 +1,121 @@
 package bgu.spl.net.impl.stomp;
 
+import bgu.spl.net.api.MessageEncoderDecoder;
+import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.srv.BufferPool;
 import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.OutboundLimits;
+import bgu.spl.net.srv.ReactorConfig;
 import bgu.spl.net.srv.Server;
+import bgu.spl.net.srv.ServerMetrics;
+import bgu.spl.net.srv.SlowConsumerPolicy;
 
 public class StompServer {
 
+    // a subscriber this far behind is told so and disconnected instead of growing the heap
+    private static final long MAX_OUTBOUND_BYTES = 8L << 20; //8MB
+    private static final int MAX_OUTBOUND_FRAMES = 20_000;
+    private static final long METRICS_PERIOD_MS = 1000;
+    // what a late subscriber can ask to be replayed, see ChannelHistory
+    private static final int HISTORY_MESSAGES = 256;
+    private static final long HISTORY_CHANNEL_BYTES = 256L << 10; //256k
+    private static final long HISTORY_TOTAL_BYTES = 64L << 20; //64MB
+    private static final long HISTORY_IDLE_MS = 30 * 60 * 1000;
+
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.out.println("Usage: StompServer <port> <tcp|reactor>");
+            System.out.println("Usage: StompServer <port> <tcp|tcp-virtual|reactor> [io-loops] [inline]");
             return;
         }
 
         int port = Integer.parseInt(args[0]);
         String serverType = args[1];
+        OutboundLimits outboundLimits = new OutboundLimits(
+            MAX_OUTBOUND_BYTES,
+            MAX_OUTBOUND_FRAMES,
+            SlowConsumerPolicy.DISCONNECT,
+            StompFrame.error("Slow consumer - too many messages pending").toBytes());
+
+        // loads the report history from SQL now rather than on the first client's CONNECT
+        Database.getInstance();
+
+        ChannelHistory history = new ChannelHistory(HISTORY_MESSAGES, HISTORY_CHANNEL_BYTES, HISTORY_TOTAL_BYTES, HISTORY_IDLE_MS);
+        ServerMetrics.getInstance().setHistory(history::getStats);
+
+        // the meters are readable over JMX (e.g. jconsole) as well as from /app/metrics
+        try {
+            ServerMetrics.getInstance().registerMBean();
+        } catch (Exception e) {
+            System.err.println("Could not register the metrics MBean: " + e.getMessage());
+        }
 
-        if (serverType.equalsIgnoreCase("tcp")) {
-            StompTCPServer<String> server = new StompTCPServer<>(
+        if (serverType.equalsIgnoreCase("tcp") || serverType.equalsIgnoreCase("tcp-virtual")) {
+            StompTCPServer<StompFrame> server = new StompTCPServer<>(
                 port,
-                () -> new StompMessagingProtocolImpl(),
-                () -> new StompMessageEncoderDecoder()
+                () -> new StompMessagingProtocolImpl(history),
+                () -> new StompMessageEncoderDecoder(),
+                outboundLimits,
+                serverType.equalsIgnoreCase("tcp-virtual")
             );
+            registerFanOut(server.getConnections());
+            registerWriteQueues(server.getConnections());
+            new MetricsPublisher(server.getConnections(), METRICS_PERIOD_MS);
             server.serve();
         } else if (serverType.equalsIgnoreCase("reactor")) {
-            // Create Connections instance (like TPC does)
-            Connections<String> connections;
+            // optional third argument spreads network I/O over several selector threads
+            int ioLoops = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+            // optional "inline" handles SUBSCRIBE / UNSUBSCRIBE on the selector threads
+            boolean inline = args.length > 3 && args[3].equalsIgnoreCase("inline");
+            ReactorConfig config = new ReactorConfig()
+                .setThreads(10)  // number of threads in thread pool
+                .setIoLoops(ioLoops)
+                .setInlineCheapMessages(inline)
+                .setOutboundLimits(outboundLimits);
+
+            // Create Connections instance (like TPC does), broadcasting from the reactor's buffer pool
+            Connections<StompFrame> connections;
             try {
-                connections = (Connections<String>) Class.forName("bgu.spl.net.impl.stomp.ConnectionsImpl")
-                    .getDeclaredConstructor().newInstance();
+                connections = (Connections<StompFrame>) Class.forName("bgu.spl.net.impl.stomp.ConnectionsImpl")
+                    .getDeclaredConstructor(MessageEncoderDecoder.class, BufferPool.class)
+                    .newInstance(new StompMessageEncoderDecoder(), config.getBufferPool());
             } catch (Exception e) {
                 System.err.println("Failed to instantiate ConnectionsImpl: " + e.getMessage());
                 return;
             }
-        
+
+            registerFanOut(connections);
+            registerWriteQueues(connections);
+            new MetricsPublisher(connections, METRICS_PERIOD_MS);
+
             // Create and run reactor server
-            Server<String> server = Server.reactor(
-                10,  // number of threads in thread pool
+            Server<StompFrame> server = Server.reactor(
+                config,
                 port,
-                () -> new StompMessagingProtocolImpl(),
+                () -> new StompMessagingProtocolImpl(history),
                 () -> new StompMessageEncoderDecoder(),
                 connections
             );
             server.serve();
         } else {
-            System.err.println("Unknown server type: " + serverType + ". Use 'tcp' or 'reactor'");
+            System.err.println("Unknown server type: " + serverType + ". Use 'tcp', 'tcp-virtual' or 'reactor'");
+        }
+    }
+
+    /**
+     * Shows the broadcasts waiting in the server's fan-out lanes in the metrics.
+     */
+    private static void registerFanOut(Connections<StompFrame> connections) {
+        if (connections instanceof ConnectionsImpl<StompFrame> impl) {
+            ServerMetrics.getInstance().setFanOutPending(impl.getFanOut()::getPending);
+        }
+    }
+
+    /**
+     * Shows the frames waiting to be written to each of the server's connections in the metrics.
+     */
+    private static void registerWriteQueues(Connections<StompFrame> connections) {
+        if (connections instanceof ConnectionsImpl<StompFrame> impl) {
+            ServerMetrics.getInstance().setWriteQueueDepths(impl::getQueuedFrames);
         }
     }
 }
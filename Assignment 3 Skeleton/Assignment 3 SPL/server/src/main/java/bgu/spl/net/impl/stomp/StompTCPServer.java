@@ -5,10 +5,12 @@ import bgu.spl.net.api.StompMessagingProtocol;
 import bgu.spl.net.srv.BlockingConnectionHandler;
 import bgu.spl.net.srv.ConnectionHandler;
 import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.OutboundLimits;
 import bgu.spl.net.srv.Server;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
 import java.util.function.Supplier;
 
 public class StompTCPServer<T> implements Server<T> {
@@ -16,6 +18,8 @@ public class StompTCPServer<T> implements Server<T> {
     private final int port;
     private final Supplier<StompMessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> encdecFactory;
+    private final OutboundLimits outboundLimits;
+    private final ThreadFactory clientThreads;
     private ServerSocket sock;
     private Connections<T> connections;
     private int connectionIdCounter = 1;
@@ -24,19 +28,46 @@ public class StompTCPServer<T> implements Server<T> {
             int port,
             Supplier<StompMessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> encdecFactory) {
+        this(port, protocolFactory, encdecFactory, new OutboundLimits());
+    }
+
+    public StompTCPServer(
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encdecFactory,
+            OutboundLimits outboundLimits) {
+        this(port, protocolFactory, encdecFactory, outboundLimits, false);
+    }
+
+    public StompTCPServer(
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encdecFactory,
+            OutboundLimits outboundLimits,
+            boolean virtualThreads) {
 
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.encdecFactory = encdecFactory;
+        this.outboundLimits = outboundLimits;
+        // a virtual thread per client parks on blocking socket calls instead of holding an OS thread
+        this.clientThreads = virtualThreads
+                ? Thread.ofVirtual().name("stomp-client-", 1).factory()
+                : Thread.ofPlatform().name("stomp-client-", 1).factory();
         this.sock = null;
         try {
             this.connections = (Connections<T>) Class.forName("bgu.spl.net.impl.stomp.ConnectionsImpl")
-                .getDeclaredConstructor().newInstance();
+                .getDeclaredConstructor(MessageEncoderDecoder.class)
+                .newInstance(encdecFactory.get());
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    public Connections<T> getConnections() {
+        return connections;
+    }
+
     @Override
     public void serve() {
         try (ServerSocket serverSock = new ServerSocket(port)) {
@@ -54,7 +85,9 @@ public class StompTCPServer<T> implements Server<T> {
                 BlockingConnectionHandler<T> handler = new BlockingConnectionHandler<>(
                         clientSock,
                         encdecFactory.get(),
-                        protocol);
+                        protocol,
+                        connectionId,
+                        outboundLimits);
 
                 try {
                     Class<?> connectionsClass = connections.getClass();
@@ -67,15 +100,15 @@ public class StompTCPServer<T> implements Server<T> {
                     e.printStackTrace();
                 }
 
-                Thread handlerThread = new Thread(handler);
-                handlerThread.start();
-                System.out.println("Handler thread started");
-                
-                // give thread time to initialize streams
-                try { Thread.sleep(10); } catch (InterruptedException e) {}
-                
+                // started before its thread, so the first frame the client sends finds it ready
                 protocol.start(connectionId, connections);
                 System.out.println("Protocol started");
+
+                clientThreads.newThread(() -> {
+                    handler.run();
+                    connections.disconnect(connectionId);
+                }).start();
+                System.out.println("Handler thread started");
             }
         } catch (IOException ex) {
         }
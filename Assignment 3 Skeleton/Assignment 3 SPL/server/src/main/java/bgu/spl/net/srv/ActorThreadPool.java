@@ -1,78 +1,133 @@
 package bgu.spl.net.srv;
 
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
-import java.util.Set;
-import java.util.WeakHashMap;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Runs the tasks of many actors on a few threads, one task of an actor at a time and in submission order.
+ * Every actor owns a {@link Mailbox}; submitting and completing a task are a queue offer/poll and a CAS
+ * on the mailbox, no locks and no shared map of actors.
+ * <p>
+ * A scheduled actor keeps its thread for a turn of up to maxTasksPerTurn queued tasks, or until maxTurnMicros
+ * passed, before going back to the end of the pool's queue behind the other actors.
+ * <p>
+ * The time from handing an actor to the pool until its turn starts is recorded in {@link ServerMetrics#poolWait()}.
+ */
 public class ActorThreadPool {
 
-    private final Map<Object, Queue<Runnable>> acts;
-    private final ReadWriteLock actsRWLock;
-    private final Set<Object> playingNow;
-    private final ExecutorService threads;
+    private static final int DEFAULT_MAX_TASKS_PER_TURN = 1;
+
+    private final ThreadPoolExecutor threads;
+    private final int maxTasksPerTurn;
+    private final long maxTurnNanos;
 
     public ActorThreadPool(int threads) {
-        this.threads = Executors.newFixedThreadPool(threads);
-        acts = new WeakHashMap<>();
-        playingNow = ConcurrentHashMap.newKeySet();
-        actsRWLock = new ReentrantReadWriteLock();
+        this(threads, DEFAULT_MAX_TASKS_PER_TURN, 0);
     }
 
-    public void submit(Object act, Runnable r) {
-        synchronized (act) {
-            if (!playingNow.contains(act)) {
-                playingNow.add(act);
-                execute(r, act);
-            } else {
-                pendingRunnablesOf(act).add(r);
-            }
+    /**
+     * @param maxTasksPerTurn most tasks of one actor run before other actors get the thread
+     * @param maxTurnMicros once a turn ran this long it ends after the current task, 0 for no time limit
+     */
+    public ActorThreadPool(int threads, int maxTasksPerTurn, long maxTurnMicros) {
+        if (maxTasksPerTurn < 1) {
+            throw new IllegalArgumentException("maxTasksPerTurn must be positive: " + maxTasksPerTurn);
         }
+        if (maxTurnMicros < 0) {
+            throw new IllegalArgumentException("maxTurnMicros must not be negative: " + maxTurnMicros);
+        }
+        // what Executors.newFixedThreadPool builds, kept typed so the queue depth can be read
+        this.threads = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        this.maxTasksPerTurn = maxTasksPerTurn;
+        this.maxTurnNanos = TimeUnit.MICROSECONDS.toNanos(maxTurnMicros);
     }
 
-    public void shutdown() {
-        threads.shutdownNow();
-    }
-
-    private Queue<Runnable> pendingRunnablesOf(Object act) {
+    /**
+     * The queue of tasks waiting for one actor, and whether the actor is scheduled on the pool.
+     * An actor keeps a single mailbox for its lifetime.
+     */
+    public static final class Mailbox implements Runnable {
 
-        actsRWLock.readLock().lock();
-        Queue<Runnable> pendingRunnables = acts.get(act);
-        actsRWLock.readLock().unlock();
+        // many submitters, one consumer: whoever holds the scheduled flag
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private ActorThreadPool pool; // set before every hand off to the executor, which publishes it
+        private long handedOffNanos; // same
 
-        if (pendingRunnables == null) {
-            actsRWLock.writeLock().lock();
-            acts.put(act, pendingRunnables = new LinkedList<>());
-            actsRWLock.writeLock().unlock();
+        /**
+         * @return true if no task of this actor is queued or running
+         */
+        public boolean isIdle() {
+            return !scheduled.get() && tasks.isEmpty();
         }
-        return pendingRunnables;
-    }
 
-    private void execute(Runnable r, Object act) {
-        threads.execute(() -> {
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            ServerMetrics.getInstance().poolWait().record(start - handedOffNanos);
+            int budget = pool.maxTasksPerTurn;
+            long deadline = pool.maxTurnNanos > 0 ? start + pool.maxTurnNanos : 0;
             try {
-                r.run();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                    if (--budget == 0 || (deadline != 0 && System.nanoTime() - deadline >= 0)) {
+                        break;
+                    }
+                }
             } finally {
-                complete(act);
+                complete();
             }
-        });
-    }
+        }
+
+        private void submit(Runnable task, ActorThreadPool pool) {
+            tasks.add(task);
+            schedule(pool);
+        }
+
+        private void schedule(ActorThreadPool pool) {
+            // only the submitter that flips the flag hands the mailbox to the executor
+            if (scheduled.compareAndSet(false, true)) {
+                this.pool = pool;
+                handOff();
+            }
+        }
+
+        private void handOff() {
+            handedOffNanos = System.nanoTime();
+            pool.threads.execute(this);
+        }
 
-    private void complete(Object act) {
-        synchronized (act) {
-            Queue<Runnable> pending = pendingRunnablesOf(act);
-            if (pending.isEmpty()) {
-                playingNow.remove(act);
-            } else {
-                execute(pending.poll(), act);
+        private void complete() {
+            if (!tasks.isEmpty()) {
+                // still ours - the turn is used up, so run the rest as a new turn and let other actors in between
+                handOff();
+                return;
+            }
+            scheduled.set(false);
+            // a task added after the isEmpty check above saw the flag still set and left it to us
+            if (!tasks.isEmpty()) {
+                schedule(pool);
             }
         }
     }
 
+    public void submit(Mailbox mailbox, Runnable r) {
+        mailbox.submit(r, this);
+    }
+
+    /**
+     * @return actors waiting for a thread
+     */
+    public int getQueueDepth() {
+        return threads.getQueue().size();
+    }
+
+    public void shutdown() {
+        threads.shutdownNow();
+    }
+
 }
@@ -6,47 +6,105 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
+    private static final int READ_CHUNK_SIZE = 1 << 13; //8k
+    private static final int WRITE_CHUNK_SIZE = 1 << 13; //8k
+    private static final long WRITER_LINGER_MS = 5000; //how long a closing connection waits for its pending writes
+
     private final MessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
     private final Socket sock;
     private BufferedInputStream in;
     private BufferedOutputStream out;
     private volatile boolean connected = true;
+    private final byte[] writeChunk = new byte[WRITE_CHUNK_SIZE];
+
+    // senders only queue here and a writer thread of this connection does the blocking writes,
+    // so a stalled client holds up its own writer instead of the threads relaying to it
+    private final int connectionId;
+    private final OutboundLimits limits;
+    // a lock rather than a monitor, so an idle writer on a virtual thread does not pin its carrier
+    private final ReentrantLock outboxLock = new ReentrantLock();
+    private final Condition outboxChanged = outboxLock.newCondition();
+    private final Condition outboxTaken = outboxLock.newCondition(); // a message left the outbox, or writing stopped
+    private final ArrayDeque<ByteBuffer> outbox = new ArrayDeque<>(); //guarded by outboxLock
+    private long outboxBytes = 0; //guarded by outboxLock
+    private long added = 0; //guarded by outboxLock, messages ever queued
+    private long taken = 0; //guarded by outboxLock, messages ever taken by the writer or dropped from the front
+    private boolean writing = true; //guarded by outboxLock, false once nothing more will be queued
+    private boolean overflowed = false; //guarded by outboxLock
+    private final AtomicLong droppedFrames = new AtomicLong();
 
     public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, MessagingProtocol<T> protocol) {
+        this(sock, reader, protocol, 0, new OutboundLimits());
+    }
+
+    public BlockingConnectionHandler(
+            Socket sock,
+            MessageEncoderDecoder<T> reader,
+            MessagingProtocol<T> protocol,
+            int connectionId,
+            OutboundLimits limits) {
         this.sock = sock;
         this.encdec = reader;
         this.protocol = protocol;
+        this.connectionId = connectionId;
+        this.limits = limits;
     }
 
     @Override
     public void run() {
         try (Socket sock = this.sock) { //just for automatic closing
             int read;
+            byte[] readChunk = new byte[READ_CHUNK_SIZE];
+            ByteBuffer readBuffer = ByteBuffer.wrap(readChunk);
+            Consumer<T> messageConsumer = this::processMessage;
 
             in = new BufferedInputStream(sock.getInputStream());
             out = new BufferedOutputStream(sock.getOutputStream());
+            // the writer is the same kind of thread as the reader, virtual for a virtual thread server
+            Thread writer = (Thread.currentThread().isVirtual() ? Thread.ofVirtual() : Thread.ofPlatform().daemon())
+                    .name("writer-" + connectionId)
+                    .start(this::writeLoop);
 
-            while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
-                T nextMessage = encdec.decodeNextByte((byte) read);
-                if (nextMessage != null) {
-                    T response = protocol.process(nextMessage);
-                    if (response != null) {
-                        out.write(encdec.encode(response));
-                        out.flush();
-                    }
+            try {
+                while (!protocol.shouldTerminate() && connected && (read = in.read(readChunk)) >= 0) {
+                    ServerMetrics.getInstance().bytesIn(read);
+                    readBuffer.clear().limit(read);
+                    encdec.decodeNextBytes(readBuffer, messageConsumer);
                 }
+            } finally {
+                // let the last responses (e.g. the DISCONNECT receipt) out before the socket closes
+                stopWriting();
+                writer.join(WRITER_LINGER_MS);
             }
 
         } catch (IOException ex) {
             ex.printStackTrace();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
 
     }
 
+    private void processMessage(T nextMessage) {
+        if (protocol.shouldTerminate()) {
+            return; //anything after the terminating message is ignored
+        }
+        T response = protocol.process(nextMessage);
+        if (response != null) {
+            send(response);
+        }
+    }
+
     @Override
     public void close() throws IOException {
         connected = false;
@@ -55,13 +113,213 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
 
     @Override
     public void send(T msg) {
+        if (msg != null) {
+            enqueue(ByteBuffer.wrap(encdec.encode(msg)));
+        }
+    }
+
+    /**
+     * The protocol runs on this connection's own reading thread, so it waits here until the writer took the
+     * message, then runs written on the same thread.
+     */
+    @Override
+    public void send(T msg, Runnable written) {
+        long position = enqueue(ByteBuffer.wrap(encdec.encode(msg)));
+        outboxLock.lock();
+        try {
+            while (position > 0 && writing && taken < position) {
+                outboxTaken.await();
+            }
+            if (!writing) {
+                return; // nothing is written any more
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            outboxLock.unlock();
+        }
+        written.run();
+    }
+
+    @Override
+    public void sendEncoded(ByteBuffer encoded) {
+        if (encoded != null) {
+            enqueue(encoded.duplicate());
+        }
+    }
+
+    /**
+     * @return messages discarded because this connection was over its outbound limits
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    @Override
+    public int getQueuedFrames() {
+        outboxLock.lock();
         try {
-            if (msg != null && out != null) {
-                out.write(encdec.encode(msg));
-                out.flush();
+            return outbox.size();
+        } finally {
+            outboxLock.unlock();
+        }
+    }
+
+    /**
+     * @return how many messages were ever queued, this one the last, or 0 if it was not queued
+     */
+    private long enqueue(ByteBuffer buf) {
+        outboxLock.lock();
+        try {
+            if (!writing) {
+                return 0;
+            }
+            if (!limits.fits(outbox.size(), outboxBytes, buf.remaining()) && !makeRoom(buf.remaining())) {
+                return 0;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            outbox.add(buf);
+            outboxBytes += buf.remaining();
+            outboxChanged.signal();
+            return ++added;
+        } finally {
+            outboxLock.unlock();
+        }
+    }
+
+    /**
+     * Applies the slow consumer policy, called holding outboxLock.
+     * @return true if the message should still be queued
+     */
+    private boolean makeRoom(int size) {
+        limits.recordHit(connectionId);
+        switch (limits.getPolicy()) {
+            case DROP_OLDEST:
+                while (!outbox.isEmpty() && !limits.fits(outbox.size(), outboxBytes, size)) {
+                    outboxBytes -= outbox.poll().remaining();
+                    taken++;
+                    dropped(1);
+                }
+                outboxTaken.signalAll();
+                return true;
+            case DISCONNECT:
+                overflowed = true;
+                writing = false;
+                limits.recordDisconnect();
+                dropped(outbox.size() + 1);
+                outbox.clear();
+                outboxBytes = 0;
+                ByteBuffer notice = limits.overflowNotice();
+                if (notice != null) {
+                    outbox.add(notice);
+                    outboxBytes = notice.remaining();
+                }
+                outboxChanged.signal();
+                outboxTaken.signalAll();
+                return false;
+            default:
+                dropped(1);
+                return false;
+        }
+    }
+
+    private void dropped(int frames) {
+        droppedFrames.addAndGet(frames);
+        limits.recordDropped(frames);
+    }
+
+    private void stopWriting() {
+        outboxLock.lock();
+        try {
+            writing = false;
+            outboxChanged.signal();
+            outboxTaken.signalAll();
+            // nothing is queued from now on, so no more hits either
+            limits.connectionClosed(connectionId);
+        } finally {
+            outboxLock.unlock();
+        }
+    }
+
+    /**
+     * Body of the writer thread: writes queued messages until the connection stops writing
+     * and the outbox is empty, flushing whenever it runs out of queued messages.
+     */
+    private void writeLoop() {
+        try {
+            ByteBuffer next;
+            while ((next = takeOutbox()) != null) {
+                writeFully(next);
+                if (outboxIsEmpty()) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (IOException ex) {
+            //the client is gone, the reading side will find out as well
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        // a writer that gave up on the client takes nothing any more, so nobody may wait for it
+        stopWriting();
+
+        boolean disconnect;
+        outboxLock.lock();
+        try {
+            disconnect = overflowed;
+        } finally {
+            outboxLock.unlock();
+        }
+        if (disconnect) {
+            try {
+                close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return the next queued message, or null once the connection stopped writing and nothing is left
+     */
+    private ByteBuffer takeOutbox() throws InterruptedException {
+        outboxLock.lock();
+        try {
+            while (outbox.isEmpty() && writing) {
+                outboxChanged.await();
+            }
+            ByteBuffer next = outbox.poll();
+            if (next != null) {
+                outboxBytes -= next.remaining();
+                taken++;
+                outboxTaken.signalAll();
+            }
+            return next;
+        } finally {
+            outboxLock.unlock();
+        }
+    }
+
+    private boolean outboxIsEmpty() {
+        outboxLock.lock();
+        try {
+            return outbox.isEmpty();
+        } finally {
+            outboxLock.unlock();
+        }
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        ServerMetrics.getInstance().bytesOut(buf.remaining());
+        if (buf.hasArray()) {
+            out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            return;
+        }
+        // shared buffers are read-only, so copy them out through a reusable chunk
+        while (buf.hasRemaining()) {
+            int n = Math.min(buf.remaining(), writeChunk.length);
+            buf.get(writeChunk, 0, n);
+            out.write(writeChunk, 0, n);
         }
     }
 }
@@ -0,0 +1,394 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Direct buffers in a few size classes, shared by the connections of a server.
+ * A thread that leases and releases all the time - a selector loop, see {@link #cacheOnThisThread()} - keeps
+ * a small cache of free buffers per class and only goes to the shared lists when its cache is empty or full,
+ * moving half a cache at a time, so the I/O threads rarely contend on a lease or release. Any other thread
+ * leases from and releases to the shared lists, so pool, fan-out or virtual threads that touch a buffer now
+ * and then don't each pin a cache.
+ * <p>
+ * Every free buffer the pool keeps, in a cache or a shared list, counts against maxRetainedBytes; buffers
+ * released beyond that are dropped and freed by the GC, so the pool shrinks back after a spike. A cache takes
+ * its share of the cap in chunks, so most of its releases and leases don't touch the shared count.
+ * Once the caches are warm, leasing and releasing allocate nothing.
+ * <p>
+ * The pool also keeps the {@link SharedFrame}s broadcasts are written from, in shared lists per class only,
+ * as a frame is taken once per broadcast rather than once per connection. Free frames count against
+ * maxRetainedBytes like free buffers.
+ */
+public class BufferPool {
+
+    /** buffer capacities handed out, smallest first */
+    private static final int[] CLASS_SIZES = {1 << 8, 1 << 10, 1 << 12, 1 << 13, 1 << 15, 1 << 17}; //256 1k 4k 8k 32k 128k
+    private static final int DEFAULT_THREAD_CACHE_BUFFERS = 64;
+    private static final long DEFAULT_MAX_RETAINED_BYTES = 32L << 20; //32MB
+    private static final long CACHE_RESERVATION_BYTES = 1L << 18; //256k, taken from the cap by a cache at a time
+
+    private final int threadCacheBuffers;
+    private final long maxRetainedBytes;
+    private final ThreadLocal<ThreadCache> caches = new ThreadLocal<>(); // set on the threads that asked for one
+    // a plain deque per class rather than a concurrent queue, whose every add allocates a node
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<ByteBuffer>[] shared = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[CLASS_SIZES.length]; //each guarded by itself
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<SharedFrame>[] frames = (ArrayDeque<SharedFrame>[]) new ArrayDeque<?>[CLASS_SIZES.length]; //each guarded by itself
+    // free buffers and frames in the shared lists, plus what the caches reserved, never above maxRetainedBytes
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder freed = new LongAdder();
+
+    public BufferPool() {
+        this(DEFAULT_THREAD_CACHE_BUFFERS, DEFAULT_MAX_RETAINED_BYTES);
+    }
+
+    /**
+     * @param threadCacheBuffers free buffers a caching thread keeps for itself per size class, at least 2
+     * @param maxRetainedBytes most bytes of free buffers kept, in the thread caches and the shared lists together
+     */
+    public BufferPool(int threadCacheBuffers, long maxRetainedBytes) {
+        if (threadCacheBuffers < 2) {
+            throw new IllegalArgumentException("threadCacheBuffers must be at least 2: " + threadCacheBuffers);
+        }
+        if (maxRetainedBytes < 0) {
+            throw new IllegalArgumentException("maxRetainedBytes must not be negative: " + maxRetainedBytes);
+        }
+        this.threadCacheBuffers = threadCacheBuffers;
+        this.maxRetainedBytes = maxRetainedBytes;
+        for (int i = 0; i < shared.length; i++) {
+            shared[i] = new ArrayDeque<>();
+            frames[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * @return the largest buffer the pool hands out
+     */
+    public static int maxSize() {
+        return CLASS_SIZES[CLASS_SIZES.length - 1];
+    }
+
+    /**
+     * @return the capacity of the buffer {@link #lease(int)} returns for this size
+     */
+    public static int sizeClassOf(int size) {
+        return CLASS_SIZES[classOf(size)];
+    }
+
+    /**
+     * @param size bytes needed, at most {@link #maxSize()}
+     * @return a cleared direct buffer of at least size bytes, limited to its whole capacity
+     */
+    public ByteBuffer lease(int size) {
+        int sizeClass = classOf(size);
+        ThreadCache cache = caches.get();
+        ByteBuffer buf;
+        if (cache != null) {
+            buf = cache.poll(sizeClass);
+            if (buf == null && refill(cache, sizeClass)) {
+                buf = cache.poll(sizeClass);
+            }
+        } else {
+            ArrayDeque<ByteBuffer> list = shared[sizeClass];
+            synchronized (list) {
+                buf = list.pollLast();
+            }
+        }
+        if (buf == null) {
+            misses.increment();
+            return ByteBuffer.allocateDirect(CLASS_SIZES[sizeClass]);
+        }
+        hits.increment();
+        if (cache != null) {
+            cache.trim(); // the buffer's bytes stay reserved for the cache's next release
+        } else {
+            retainedBytes.addAndGet(-CLASS_SIZES[sizeClass]);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Gives a leased buffer back. Buffers the pool did not hand out - heap, read-only, or of another
+     * capacity - are ignored, so a caller may pass anything it was about to drop.
+     */
+    public void release(ByteBuffer buf) {
+        if (!isPooled(buf)) {
+            return;
+        }
+        released.increment();
+        int sizeClass = classOf(buf.capacity());
+        int size = CLASS_SIZES[sizeClass];
+        ThreadCache cache = caches.get();
+        if (cache == null) {
+            if (!reserve(size)) {
+                freed.increment();
+                return;
+            }
+            ArrayDeque<ByteBuffer> list = shared[sizeClass];
+            synchronized (list) {
+                list.addLast(buf);
+            }
+            return;
+        }
+        if (!cache.reserve(size)) {
+            freed.increment();
+            return;
+        }
+        if (!cache.offer(sizeClass, buf)) {
+            spill(cache, sizeClass);
+            cache.offer(sizeClass, buf);
+        }
+    }
+
+    /**
+     * Gives the calling thread a cache of its own, for a thread that leases and releases buffers all the time
+     * and lives as long as the pool, a selector loop. Such a thread should call {@link #dropThreadCache()}
+     * before it ends.
+     */
+    public void cacheOnThisThread() {
+        if (caches.get() == null) {
+            caches.set(new ThreadCache());
+        }
+    }
+
+    /**
+     * Moves the calling thread's cached buffers to the shared lists and gives its reservation back.
+     */
+    public void dropThreadCache() {
+        ThreadCache cache = caches.get();
+        if (cache == null) {
+            return;
+        }
+        caches.remove();
+        for (int sizeClass = 0; sizeClass < CLASS_SIZES.length; sizeClass++) {
+            ArrayDeque<ByteBuffer> list = shared[sizeClass];
+            synchronized (list) {
+                ByteBuffer buf;
+                while ((buf = cache.pollOldest(sizeClass)) != null) {
+                    list.addLast(buf);
+                    cache.reserved -= CLASS_SIZES[sizeClass]; // counted in the shared list now
+                }
+            }
+        }
+        retainedBytes.addAndGet(-cache.reserved);
+    }
+
+    /**
+     * @param encoded bytes to share, at most {@link #maxSize()}; its position is left alone
+     * @return a frame holding a copy of the bytes and one reference, the caller's
+     */
+    public SharedFrame share(ByteBuffer encoded) {
+        int sizeClass = classOf(encoded.remaining());
+        ArrayDeque<SharedFrame> list = frames[sizeClass];
+        SharedFrame frame;
+        synchronized (list) {
+            frame = list.pollLast();
+        }
+        if (frame == null) {
+            misses.increment();
+            frame = new SharedFrame(this, ByteBuffer.allocateDirect(CLASS_SIZES[sizeClass]), sizeClass);
+        } else {
+            hits.increment();
+            retainedBytes.addAndGet(-CLASS_SIZES[sizeClass]);
+        }
+        frame.fill(encoded);
+        return frame;
+    }
+
+    /**
+     * Takes back a frame whose last reference was dropped, or drops it if the shared lists are full.
+     */
+    void recycle(SharedFrame frame) {
+        released.increment();
+        if (!reserve(CLASS_SIZES[frame.sizeClass()])) {
+            freed.increment();
+            return;
+        }
+        ArrayDeque<SharedFrame> list = frames[frame.sizeClass()];
+        synchronized (list) {
+            list.addLast(frame);
+        }
+    }
+
+    /**
+     * @return true if the buffer could have come from a pool - direct, writable and of a class capacity
+     */
+    public static boolean isPooled(ByteBuffer buf) {
+        int capacity = buf.capacity();
+        return buf.isDirect() && !buf.isReadOnly() && capacity <= maxSize() && CLASS_SIZES[classOf(capacity)] == capacity;
+    }
+
+    /**
+     * @return leases served by a free buffer
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return leases that had to allocate a new buffer
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return buffers leased and not released yet, including those of connections that closed mid-write
+     */
+    public long getOutstanding() {
+        return hits.sum() + misses.sum() - released.sum();
+    }
+
+    /**
+     * @return released buffers and frames dropped because the pool kept maxRetainedBytes already
+     */
+    public long getFreed() {
+        return freed.sum();
+    }
+
+    /**
+     * @return bytes of free buffers and frames the pool keeps, with what the thread caches reserved for their
+     * next releases, at most maxRetainedBytes
+     */
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    /**
+     * Counts bytes more of free buffers against the cap.
+     * @return false, counting nothing, if they don't fit
+     */
+    private boolean reserve(long bytes) {
+        long retained;
+        do {
+            retained = retainedBytes.get();
+            if (retained + bytes > maxRetainedBytes) {
+                return false;
+            }
+        } while (!retainedBytes.compareAndSet(retained, retained + bytes));
+        return true;
+    }
+
+    /**
+     * Moves up to half a thread cache of free buffers from the shared list to the empty cache.
+     * Their bytes stay counted, as part of the cache's reservation from now on.
+     * @return true if any were moved
+     */
+    private boolean refill(ThreadCache cache, int sizeClass) {
+        int moved = 0;
+        ArrayDeque<ByteBuffer> list = shared[sizeClass];
+        synchronized (list) {
+            ByteBuffer buf;
+            while (moved < threadCacheBuffers / 2 && (buf = list.pollLast()) != null) {
+                cache.offer(sizeClass, buf);
+                moved++;
+            }
+        }
+        cache.reserved += (long) moved * CLASS_SIZES[sizeClass];
+        return moved > 0;
+    }
+
+    /**
+     * Moves the older half of a full thread cache to the shared list, their bytes counted there from now on.
+     */
+    private void spill(ThreadCache cache, int sizeClass) {
+        int moved = threadCacheBuffers / 2;
+        ArrayDeque<ByteBuffer> list = shared[sizeClass];
+        synchronized (list) {
+            for (int i = moved; i > 0; i--) {
+                list.addLast(cache.pollOldest(sizeClass));
+            }
+        }
+        cache.reserved -= (long) moved * CLASS_SIZES[sizeClass];
+    }
+
+    private static int classOf(int size) {
+        for (int i = 0; i < CLASS_SIZES.length; i++) {
+            if (size <= CLASS_SIZES[i]) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("no buffer class holds " + size + " bytes");
+    }
+
+    /**
+     * Free buffers of one thread, touched by that thread only, and the part of maxRetainedBytes it reserved:
+     * the bytes of its buffers plus a spare chunk or two for its next releases.
+     */
+    private final class ThreadCache {
+        @SuppressWarnings("unchecked")
+        private final ArrayDeque<ByteBuffer>[] free = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[CLASS_SIZES.length];
+        private long cached = 0;
+        private long reserved = 0;
+
+        ThreadCache() {
+            for (int i = 0; i < free.length; i++) {
+                free[i] = new ArrayDeque<>(threadCacheBuffers);
+            }
+        }
+
+        ByteBuffer poll(int sizeClass) {
+            ByteBuffer buf = free[sizeClass].pollLast(); // the most recently used buffer is the likeliest to be cached
+            if (buf != null) {
+                cached -= CLASS_SIZES[sizeClass];
+            }
+            return buf;
+        }
+
+        ByteBuffer pollOldest(int sizeClass) {
+            ByteBuffer buf = free[sizeClass].pollFirst();
+            if (buf != null) {
+                cached -= CLASS_SIZES[sizeClass];
+            }
+            return buf;
+        }
+
+        boolean offer(int sizeClass, ByteBuffer buf) {
+            if (free[sizeClass].size() >= threadCacheBuffers) {
+                return false;
+            }
+            free[sizeClass].addLast(buf);
+            cached += CLASS_SIZES[sizeClass];
+            return true;
+        }
+
+        /**
+         * Makes sure the reservation covers one more buffer of size bytes, taking another chunk if it doesn't.
+         * @return false if the cap has no room for it
+         */
+        boolean reserve(int size) {
+            long spare = reserved - cached;
+            if (spare >= size) {
+                return true;
+            }
+            long more = CACHE_RESERVATION_BYTES;
+            if (!BufferPool.this.reserve(more)) {
+                more = size - spare;
+                if (!BufferPool.this.reserve(more)) {
+                    return false;
+                }
+            }
+            reserved += more;
+            return true;
+        }
+
+        /**
+         * Gives a chunk of the reservation back once more than two of them are spare, after a lease.
+         */
+        void trim() {
+            if (reserved - cached > 2 * CACHE_RESERVATION_BYTES) {
+                reserved -= CACHE_RESERVATION_BYTES;
+                retainedBytes.addAndGet(-CACHE_RESERVATION_BYTES);
+            }
+        }
+    }
+}
@@ -6,6 +6,7 @@
 package bgu.spl.net.srv;
 
 import java.io.Closeable;
+import java.nio.ByteBuffer;
 
 /**
  * The ConnectionHandler interface for Message of type T
@@ -19,4 +20,40 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * Sends a message and runs written once it left the connection's queue, so a sender of a long series of
+     * messages can produce the next one only then. Runs on no particular thread, and never if the connection
+     * closes first. By default the message counts as written once send returns.
+     */
+    default void send(T msg, Runnable written) {
+        send(msg);
+        written.run();
+    }
+
+    /**
+     * Sends bytes that were already encoded (and terminated) for this connection's protocol.
+     * The buffer may be shared by many connections, so implementations must only read it through
+     * a {@link ByteBuffer#duplicate()} and never modify it.
+     *
+     * @param encoded the encoded message
+     */
+    void sendEncoded(ByteBuffer encoded);
+
+    /**
+     * Sends a frame shared by the subscribers of a broadcast. A handler that queues the frame itself takes
+     * a reference for as long as it holds it; by default the bytes are copied and sent with sendEncoded.
+     *
+     * @param frame the encoded message, valid while the caller holds its own reference
+     */
+    default void sendShared(SharedFrame frame) {
+        sendEncoded(frame.copy());
+    }
+
+    /**
+     * @return messages queued for this connection and not yet written, 0 if the handler does not queue
+     */
+    default int getQueuedFrames() {
+        return 0;
+    }
+
 }
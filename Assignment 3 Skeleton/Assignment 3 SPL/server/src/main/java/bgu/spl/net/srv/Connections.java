@@ -1,12 +1,32 @@
 package bgu.spl.net.srv;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public interface Connections<T> {
 
     boolean send(int connectionId, T msg);
 
+    /**
+     * Sends a message and runs written once the connection wrote it, see {@link ConnectionHandler#send(Object, Runnable)}.
+     * By default the message counts as written once sent.
+     * @return false, never running written, if there is no such connection
+     */
+    default boolean send(int connectionId, T msg, Runnable written) {
+        if (!send(connectionId, msg)) {
+            return false;
+        }
+        written.run();
+        return true;
+    }
+
     void send(String channel, T msg);
 
+    /**
+     * Broadcasts an already encoded message to every subscriber of the channel.
+     * The same buffer is shared by all subscribers, so it is never modified.
+     */
+    void sendEncoded(String channel, ByteBuffer encoded);
+
     void disconnect(int connectionId);
 }
@@ -0,0 +1,211 @@
+package bgu.spl.net.srv;
+
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
+
+/**
+ * Delivers broadcasts to the subscribers of large channels on a ForkJoinPool, in chunks that run in parallel,
+ * so the sender's task returns as soon as the broadcast is queued instead of after the whole loop.
+ * <p>
+ * The broadcasts of a channel go through a lane that runs one broadcast at a time, in the order they were
+ * queued, and the next starts only once every chunk of the previous one delivered. A channel with a broadcast
+ * still in its lane keeps queueing there even when it is small, so every subscriber gets the messages of a
+ * channel in publish order. Lanes exist only while they have broadcasts to run.
+ */
+public class FanOut {
+
+    private static final int DEFAULT_THRESHOLD = 4096;
+    private static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+    private final int chunkSize;
+    private final ConcurrentHashMap<String, Lane> lanes = new ConcurrentHashMap<>();
+
+    public FanOut() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_THRESHOLD, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param parallelism threads delivering chunks
+     * @param threshold channels with at least this many subscribers are delivered in parallel
+     * @param chunkSize most subscribers one task delivers to
+     */
+    public FanOut(int parallelism, int threshold, int chunkSize) {
+        if (threshold < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException("threshold and chunkSize must be positive");
+        }
+        this.pool = new ForkJoinPool(parallelism);
+        this.threshold = threshold;
+        this.chunkSize = chunkSize;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @param subscribers current number of subscribers of the channel
+     * @return true if a broadcast to the channel must go through {@link #broadcast}, false if the caller
+     * may deliver it right away
+     */
+    public boolean isParallel(String channel, int subscribers) {
+        if (subscribers >= threshold) {
+            return true;
+        }
+        // earlier broadcasts are still out, this one has to wait behind them
+        Lane lane = lanes.get(channel);
+        return lane != null && !lane.isIdle();
+    }
+
+    /**
+     * Queues a broadcast in the channel's lane and returns.
+     * @param subscribers live view of the channel's subscribers, read when the broadcast runs
+     * @param deliver delivers the message to one connection id, called from several threads at once
+     */
+    public void broadcast(String channel, Set<Integer> subscribers, IntConsumer deliver) {
+        broadcast(channel, subscribers, deliver, null);
+    }
+
+    /**
+     * Like {@link #broadcast(String, Set, IntConsumer)}, then runs done once every subscriber was delivered to,
+     * also if delivering failed.
+     */
+    public void broadcast(String channel, Set<Integer> subscribers, IntConsumer deliver, Runnable done) {
+        Broadcast broadcast = new Broadcast(subscribers, deliver, done);
+        // under the map's lock, so a lane is never dropped between being looked up and taking the broadcast
+        lanes.compute(channel, (c, lane) -> {
+            if (lane == null) {
+                lane = new Lane(c);
+            }
+            lane.submit(broadcast);
+            return lane;
+        });
+        ServerMetrics.getInstance().parallelFanOut();
+    }
+
+    /**
+     * @return broadcasts waiting behind the running one of their channel, over all channels
+     */
+    public int getPending() {
+        int pending = 0;
+        for (Lane lane : lanes.values()) {
+            pending += lane.pending.size();
+        }
+        return pending;
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * The broadcasts of one channel, run one after the other on the pool.
+     */
+    private final class Lane implements Runnable {
+
+        private final String channel;
+        // many submitters, one consumer: whoever holds the scheduled flag
+        private final ConcurrentLinkedQueue<Broadcast> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        Lane(String channel) {
+            this.channel = channel;
+        }
+
+        boolean isIdle() {
+            return !scheduled.get() && pending.isEmpty();
+        }
+
+        void submit(Broadcast broadcast) {
+            pending.add(broadcast);
+            if (scheduled.compareAndSet(false, true)) {
+                pool.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            Broadcast broadcast;
+            while ((broadcast = pending.poll()) != null) {
+                try {
+                    broadcast.run();
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            scheduled.set(false);
+            // a broadcast added after the last poll saw the flag still set and left it to us
+            if (!pending.isEmpty() && scheduled.compareAndSet(false, true)) {
+                pool.execute(this);
+                return;
+            }
+            lanes.computeIfPresent(channel, (c, lane) -> lane.isIdle() ? null : lane);
+        }
+    }
+
+    /**
+     * One message for every subscriber of a channel.
+     */
+    private final class Broadcast {
+
+        private final Set<Integer> subscribers;
+        private final IntConsumer deliver;
+        private final Runnable done; // may be null
+
+        Broadcast(Set<Integer> subscribers, IntConsumer deliver, Runnable done) {
+            this.subscribers = subscribers;
+            this.deliver = deliver;
+            this.done = done;
+        }
+
+        /**
+         * Runs on a pool thread, so the chunks are forked there and this thread helps until all are done.
+         */
+        void run() {
+            // the live set splits itself, nothing is copied
+            try {
+                new Chunk(subscribers.spliterator(), deliver).invoke();
+            } finally {
+                if (done != null) {
+                    done.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * Part of the subscribers, split in halves until it holds about chunkSize of them.
+     */
+    @SuppressWarnings("serial") // a task of the pool, never serialized
+    private final class Chunk extends RecursiveAction {
+
+        private final Spliterator<Integer> ids;
+        private final IntConsumer deliver;
+
+        Chunk(Spliterator<Integer> ids, IntConsumer deliver) {
+            this.ids = ids;
+            this.deliver = deliver;
+        }
+
+        @Override
+        protected void compute() {
+            Spliterator<Integer> half;
+            if (ids.estimateSize() > chunkSize && (half = ids.trySplit()) != null) {
+                invokeAll(new Chunk(half, deliver), new Chunk(ids, deliver));
+                return;
+            }
+            ids.forEachRemaining(deliver::accept);
+        }
+    }
+}
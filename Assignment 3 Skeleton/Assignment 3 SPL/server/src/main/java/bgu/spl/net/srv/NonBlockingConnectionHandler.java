@@ -7,138 +7,582 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import bgu.spl.net.api.StompMessagingProtocol;
 
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
-    private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
-    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    private static final int INITIAL_READ_SIZE = 1 << 13; //8k
 
     private final MessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
-    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    // a plain deque under its own lock rather than a concurrent queue, whose every add allocates a node.
+    // Holds this connection's own ByteBuffers, the SharedFrames of broadcasts, each with a reference taken,
+    // and the Runnables of send(msg, written), run on the pool once everything ahead of them is written
+    private final ArrayDeque<Object> writeQueue = new ArrayDeque<>(); //guarded by itself
     private final SocketChannel chan;
-    private final Reactor reactor;
+    private final SelectorLoop loop;
+    private final BufferPool buffers;
+    // grows while reads fill the whole buffer and shrinks when they use little of it, selector thread only
+    private int readSize = INITIAL_READ_SIZE;
 
 
     private final int connectionId;
     private final Connections<T> connections;
     private boolean protocolInitialized = false;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    // true from asking the loop for OP_WRITE until the loop applied it, so a burst of sends asks once
+    private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+    private final Consumer<T> messageConsumer = this::processMessage;
+    private final ActorThreadPool.Mailbox mailbox = new ActorThreadPool.Mailbox();
+
+    // reads waiting to be decoded on the pool, all drained by one task so no task is built per read
+    private final ArrayDeque<ByteBuffer> pendingReads = new ArrayDeque<>(); //guarded by itself
+    private boolean readScheduled = false; //guarded by pendingReads
+    private final Runnable readTask = this::processPendingReads;
+
+    // inline mode: messages decoded on the selector thread that still have to go to the pool, selector thread only
+    private final boolean inlineCheapMessages;
+    private final Consumer<T> inlineConsumer = this::processInline;
+    private List<T> deferred;
+
+    // buffers taken off the writeQueue and handed to one gathering write, touched by the selector thread only;
+    // a shared frame is in the batch as one of its views, and its frame in the same slot of writeFrames
+    private final ByteBuffer[] writeBatch;
+    private final SharedFrame[] writeFrames;
+    private final int maxWriteBatchBytes;
+    private int writeBatchSize = 0;
+    private volatile long writeCalls = 0;
+    private volatile long framesWritten = 0;
+
+    // everything queued or batched but not yet fully written, checked against the outbound limits
+    private final OutboundLimits limits;
+    private final AtomicInteger queuedFrames = new AtomicInteger();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private volatile boolean overflowed = false;
 
     public NonBlockingConnectionHandler(
             MessageEncoderDecoder<T> reader,
             MessagingProtocol<T> protocol,
             SocketChannel chan,
-            Reactor reactor,
+            SelectorLoop loop,
             int connectionId,
             Connections<T> connections) {
+        this(reader, protocol, chan, loop, connectionId, connections, new ReactorConfig());
+    }
+
+    public NonBlockingConnectionHandler(
+            MessageEncoderDecoder<T> reader,
+            MessagingProtocol<T> protocol,
+            SocketChannel chan,
+            SelectorLoop loop,
+            int connectionId,
+            Connections<T> connections,
+            ReactorConfig config) {
         this.chan = chan;
         this.encdec = reader;
         this.protocol = protocol;
-        this.reactor = reactor;
+        this.loop = loop;
         this.connectionId = connectionId;
         this.connections = connections;
+        this.writeBatch = new ByteBuffer[config.getMaxWriteBatchFrames()];
+        this.writeFrames = new SharedFrame[writeBatch.length];
+        this.maxWriteBatchBytes = config.getMaxWriteBatchBytes();
+        this.limits = config.getOutboundLimits();
+        this.inlineCheapMessages = config.isInlineCheapMessages();
+        this.buffers = config.getBufferPool();
+    }
+
+    private void processMessage(T nextMessage) {
+        T response = protocol.process(nextMessage);
+        if (response != null) {
+            send(response);
+        }
+    }
+
+    private void initProtocol() {
+        // Initialize protocol on first message (lazy init)
+        if (!protocolInitialized) {
+            if (protocol instanceof StompMessagingProtocol<?>) {
+                ((StompMessagingProtocol<T>) protocol).start(connectionId, connections);
+            }
+            protocolInitialized = true;
+        }
     }
 
+    private void processInline(T nextMessage) {
+        // once one message is deferred every later one is too, so they are all processed in order
+        if (deferred == null && protocol.isCheap(nextMessage)) {
+            processMessage(nextMessage);
+        } else {
+            if (deferred == null) {
+                deferred = new ArrayList<>();
+            }
+            deferred.add(nextMessage);
+        }
+    }
+
+    /**
+     * Decodes the bytes on the calling selector thread and processes the leading cheap messages right away.
+     * Only called while the mailbox is idle, so no pool thread touches the decoder or the protocol meanwhile.
+     * @return a task processing the rest of the messages, or null if all of them were processed
+     */
+    private Runnable readInline(ByteBuffer buf) {
+        try {
+            initProtocol();
+            encdec.decodeNextBytes(buf, inlineConsumer);
+        } finally {
+            buffers.release(buf);
+        }
+        List<T> rest = deferred;
+        deferred = null;
+        if (rest == null) {
+            return null;
+        }
+        return () -> {
+            for (T message : rest) {
+                processMessage(message);
+            }
+        };
+    }
+
+    /**
+     * Reads what the socket has.
+     * @return the task processing what was read, or null if there is nothing left to process
+     */
     public Runnable continueRead() {
-        ByteBuffer buf = leaseBuffer();
+        ByteBuffer buf = buffers.lease(readSize);
 
         boolean success = false;
         try {
-            success = chan.read(buf) != -1;
+            int read = chan.read(buf);
+            success = read != -1;
+            if (read > 0) {
+                ServerMetrics.getInstance().bytesIn(read);
+                adaptReadSize(read, buf.capacity());
+            }
         } catch (IOException ex) {
             ex.printStackTrace();
         }
 
         if (success) {
             buf.flip();
-            return () -> {
-                try {
-
-                    // Initialize protocol on first message (lazy init)
-                    if (!protocolInitialized) {
-                        if (protocol instanceof StompMessagingProtocol<?>) {
-                            ((StompMessagingProtocol<T>) protocol).start(connectionId, connections);
-                        }
-                        protocolInitialized = true;
-                    }
-                    while (buf.hasRemaining()) {
-                        T nextMessage = encdec.decodeNextByte(buf.get());
-                        if (nextMessage != null) {
-                            T response = protocol.process(nextMessage);
-                            if (response != null) {
-                                writeQueue.add(ByteBuffer.wrap(encdec.encode(response)));
-                                reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-                            }
-                        }
-                    }
-                } finally {
-                    releaseBuffer(buf);
-                }
-            };
+            if (inlineCheapMessages && mailbox.isIdle()) {
+                return readInline(buf);
+            }
+            return queueRead(buf);
         } else {
-            releaseBuffer(buf);
+            buffers.release(buf);
             close();
             return null;
         }
 
     }
 
+    /**
+     * @return the task decoding the pending reads, or null if it is already queued and will see this one too
+     */
+    private Runnable queueRead(ByteBuffer buf) {
+        synchronized (pendingReads) {
+            pendingReads.add(buf);
+            if (readScheduled) {
+                return null;
+            }
+            readScheduled = true;
+            return readTask;
+        }
+    }
+
+    private void processPendingReads() {
+        boolean drained = false;
+        try {
+            initProtocol();
+            ByteBuffer buf;
+            while ((buf = nextPendingRead()) != null) {
+                try {
+                    encdec.decodeNextBytes(buf, messageConsumer);
+                } finally {
+                    buffers.release(buf);
+                }
+            }
+            drained = true;
+        } finally {
+            if (!drained) {
+                // the next read schedules the task again for whatever is left
+                synchronized (pendingReads) {
+                    readScheduled = false;
+                }
+            }
+        }
+    }
+
+    private ByteBuffer nextPendingRead() {
+        synchronized (pendingReads) {
+            ByteBuffer buf = pendingReads.poll();
+            if (buf == null) {
+                readScheduled = false;
+            }
+            return buf;
+        }
+    }
+
     public void close() {
         try {
             chan.close();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        if (closed.compareAndSet(false, true)) {
+            loop.channelClosed();
+            connections.disconnect(connectionId);
+            releaseUnwritten();
+        }
+    }
+
+    /**
+     * Gives the buffers that will never be written back to the pool. Only called on the selector thread,
+     * which owns the write batch; a frame a worker queues from now on is released right away.
+     */
+    private void releaseUnwritten() {
+        for (int i = 0; i < writeBatchSize; i++) {
+            releaseBatched(i);
+        }
+        writeBatchSize = 0;
+        synchronized (writeQueue) {
+            Object queued;
+            while ((queued = writeQueue.poll()) != null) {
+                discard(queued); // a written callback is dropped, nothing will be written any more
+            }
+            limits.connectionClosed(connectionId);
+        }
+    }
+
+    private void adaptReadSize(int read, int capacity) {
+        if (read == capacity && capacity < BufferPool.maxSize()) {
+            readSize = BufferPool.sizeClassOf(capacity + 1); // a big frame is coming, take it in fewer reads
+        } else if (read < capacity / 4 && capacity > INITIAL_READ_SIZE) {
+            readSize = Math.max(INITIAL_READ_SIZE, capacity / 4);
+        }
+    }
+
+    /**
+     * @return the queue through which the pool runs this connection's tasks one at a time
+     */
+    public ActorThreadPool.Mailbox getMailbox() {
+        return mailbox;
     }
 
     public boolean isClosed() {
         return !chan.isOpen();
     }
 
+    /**
+     * @return the interest ops to register the channel with, including writes queued before it was registered
+     */
+    int registrationOps() {
+        return hasQueuedWrites() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+    }
+
+    private boolean hasQueuedWrites() {
+        synchronized (writeQueue) {
+            return !writeQueue.isEmpty();
+        }
+    }
+
+    /**
+     * Writes what is queued, on the selector thread.
+     */
     public void continueWrite() {
-        while (!writeQueue.isEmpty()) {
+        while (fillWriteBatch() > 0) {
             try {
-                ByteBuffer top = writeQueue.peek();
-                chan.write(top);
-                if (top.hasRemaining()) {
-                    return;
-                } else {
-                    writeQueue.remove();
-                }
+                // one gathering write flushes as many queued frames as the socket takes
+                long written = writeBatchSize == 1
+                        ? chan.write(writeBatch[0])
+                        : chan.write(writeBatch, 0, writeBatchSize);
+                queuedBytes.addAndGet(-written);
+                ServerMetrics.getInstance().bytesOut(written);
+                writeCalls++;
             } catch (IOException ex) {
                 ex.printStackTrace();
                 close();
+                return;
+            }
+
+            if (dropWrittenBuffers() > 0) {
+                return; //the socket is full, wait for the next writable event
             }
         }
 
-        if (writeQueue.isEmpty()) {
-            if (protocol.shouldTerminate()) close();
-            else reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+        if (!hasQueuedWrites()) {
+            if (protocol.shouldTerminate() || overflowed) close();
+            else loop.clearWrite(chan);
         }
     }
 
-    private static ByteBuffer leaseBuffer() {
-        ByteBuffer buff = BUFFER_POOL.poll();
-        if (buff == null) {
-            return ByteBuffer.allocateDirect(BUFFER_ALLOCATION_SIZE);
+    /**
+     * @return messages discarded because this connection was over its outbound limits
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * @return messages queued for this connection and not yet fully written
+     */
+    @Override
+    public int getQueuedFrames() {
+        return queuedFrames.get();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * @return number of gathering writes made so far, roughly the number of write syscalls
+     */
+    public long getWriteCalls() {
+        return writeCalls;
+    }
+
+    /**
+     * @return number of queued frames fully written to the socket so far
+     */
+    public long getFramesWritten() {
+        return framesWritten;
+    }
+
+    /**
+     * Tops the write batch up from the write queue, within the frame and byte caps.
+     * A partially written buffer left from the previous call stays first. The batch ends at a written
+     * callback, which is run once the batch before it is written and so empty.
+     */
+    private int fillWriteBatch() {
+        long bytes = 0;
+        for (int i = 0; i < writeBatchSize; i++) {
+            bytes += writeBatch[i].remaining();
         }
+        synchronized (writeQueue) {
+            while (writeBatchSize < writeBatch.length && (writeBatchSize == 0 || bytes < maxWriteBatchBytes)) {
+                Object next = writeQueue.peek();
+                if (next == null || (next instanceof Runnable && writeBatchSize > 0)) {
+                    break;
+                }
+                writeQueue.poll();
+                if (next instanceof Runnable written) {
+                    loop.execute(this, written);
+                    continue;
+                }
+                ByteBuffer buf;
+                if (next instanceof SharedFrame frame) {
+                    buf = frame.view();
+                    writeFrames[writeBatchSize] = frame;
+                } else {
+                    buf = (ByteBuffer) next;
+                }
+                writeBatch[writeBatchSize++] = buf;
+                bytes += buf.remaining();
+            }
+        }
+        return writeBatchSize;
+    }
 
-        buff.clear();
-        return buff;
+    /**
+     * Removes the fully written buffers from the front of the batch.
+     * @return number of buffers still waiting to be written
+     */
+    private int dropWrittenBuffers() {
+        int done = 0;
+        while (done < writeBatchSize && !writeBatch[done].hasRemaining()) {
+            releaseBatched(done);
+            done++;
+        }
+        int left = writeBatchSize - done;
+        System.arraycopy(writeBatch, done, writeBatch, 0, left);
+        System.arraycopy(writeFrames, done, writeFrames, 0, left);
+        for (int i = left; i < writeBatchSize; i++) {
+            writeBatch[i] = null;
+            writeFrames[i] = null;
+        }
+        writeBatchSize = left;
+        framesWritten += done;
+        for (int i = 0; i < done; i++) {
+            queuedFrames.decrementAndGet();
+        }
+        return left;
     }
 
-    private static void releaseBuffer(ByteBuffer buff) {
-        BUFFER_POOL.add(buff);
+    /**
+     * Gives back the written or abandoned buffer in a slot of the write batch.
+     */
+    private void releaseBatched(int slot) {
+        SharedFrame frame = writeFrames[slot];
+        if (frame != null) {
+            frame.release(writeBatch[slot]);
+            writeFrames[slot] = null;
+        } else {
+            buffers.release(writeBatch[slot]);
+        }
+        writeBatch[slot] = null;
+    }
+
+    /**
+     * @param queued an own buffer or a shared frame, whose reference is passed on to the queue or dropped
+     */
+    private void enqueue(Object queued) {
+        synchronized (writeQueue) {
+            if (overflowed || closed.get()) {
+                discard(queued);
+                return; //closed, or already disconnecting and only the overflow notice goes out
+            }
+            int size = sizeOf(queued);
+            if (!limits.fits(queuedFrames.get(), queuedBytes.get(), size) && !makeRoom(size)) {
+                discard(queued);
+                return;
+            }
+            queuedFrames.incrementAndGet();
+            queuedBytes.addAndGet(size);
+            writeQueue.add(queued);
+        }
+        requestWrite();
+    }
+
+    private static int sizeOf(Object queued) {
+        return queued instanceof SharedFrame frame ? frame.size() : ((ByteBuffer) queued).remaining();
+    }
+
+    private void discard(Object queued) {
+        if (queued instanceof SharedFrame frame) {
+            frame.release();
+        } else if (queued instanceof ByteBuffer buf) {
+            buffers.release(buf);
+        }
+    }
+
+    private void requestWrite() {
+        if (writeRequested.compareAndSet(false, true)) {
+            loop.requestWrite(this);
+        }
+    }
+
+    /**
+     * Called by the loop as it applies a write request, from then on a new send asks again.
+     * @return the channel to add OP_WRITE to
+     */
+    SocketChannel takeWriteRequest() {
+        writeRequested.set(false);
+        return chan;
+    }
+
+    /**
+     * Applies the slow consumer policy to a message that does not fit, called holding the writeQueue lock.
+     * @return true if the message should still be queued
+     */
+    private boolean makeRoom(int size) {
+        limits.recordHit(connectionId);
+        switch (limits.getPolicy()) {
+            case DROP_OLDEST:
+                // buffers already in the write batch may be half written, only the queue is trimmed
+                Object oldest;
+                while (!limits.fits(queuedFrames.get(), queuedBytes.get(), size) && (oldest = writeQueue.poll()) != null) {
+                    if (oldest instanceof Runnable written) {
+                        loop.execute(this, written); // what it waited for is gone, so it is done
+                        continue;
+                    }
+                    forget(oldest);
+                    dropped(1);
+                }
+                return true;
+            case DISCONNECT:
+                overflowed = true;
+                limits.recordDisconnect();
+                int discarded = 0;
+                Object queued;
+                while ((queued = writeQueue.poll()) != null) {
+                    if (!(queued instanceof Runnable)) {
+                        forget(queued);
+                        discarded++;
+                    }
+                }
+                dropped(discarded + 1);
+                ByteBuffer notice = limits.overflowNotice();
+                if (notice != null) {
+                    queuedFrames.incrementAndGet();
+                    queuedBytes.addAndGet(notice.remaining());
+                    writeQueue.add(notice);
+                }
+                //continueWrite closes the connection once the notice is out
+                requestWrite();
+                return false;
+            default:
+                dropped(1);
+                return false;
+        }
+    }
+
+    private void forget(Object queued) {
+        queuedFrames.decrementAndGet();
+        queuedBytes.addAndGet(-sizeOf(queued));
+        discard(queued);
+    }
+
+    private void dropped(int frames) {
+        droppedFrames.addAndGet(frames);
+        limits.recordDropped(frames);
     }
 
     @Override
     public void send(T msg) {
         byte[] bytes = encdec.encode(msg);
-        writeQueue.add(ByteBuffer.wrap(bytes));
-        reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        if (bytes.length > BufferPool.maxSize()) {
+            enqueue(ByteBuffer.wrap(bytes)); // bigger than any pooled buffer
+            return;
+        }
+        // a heap buffer would be copied into a temporary direct one on every write anyway
+        ByteBuffer buf = buffers.lease(bytes.length);
+        buf.put(bytes).flip();
+        enqueue(buf);
+    }
+
+    @Override
+    public void send(T msg, Runnable written) {
+        send(msg);
+        synchronized (writeQueue) {
+            if (overflowed || closed.get()) {
+                return; // nothing is written any more
+            }
+            writeQueue.add(written);
+        }
+        requestWrite();
+    }
+
+    @Override
+    public void sendEncoded(ByteBuffer encoded) {
+        int size = encoded.remaining();
+        if (size > BufferPool.maxSize()) {
+            // a read-only view, so the pool never takes it for one of its own buffers
+            enqueue(encoded.asReadOnlyBuffer());
+            return;
+        }
+        // a copy in a pooled direct buffer, which a heap buffer would get on every write anyway; broadcasts come
+        // through sendShared and are not copied. The absolute put leaves the caller's position alone
+        ByteBuffer buf = buffers.lease(size);
+        buf.put(0, encoded, encoded.position(), size).limit(size);
+        enqueue(buf);
+    }
+
+    @Override
+    public void sendShared(SharedFrame frame) {
+        // the queue's reference, written through a view of the frame's bytes, never copied
+        frame.retain();
+        enqueue(frame);
     }
 }
@@ -0,0 +1,119 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-connection caps on messages queued for writing, shared by all the connections of a server.
+ * Also counts which open connections ran into the caps, and how often any connection did. The caps are checked
+ * without locking, so concurrent senders may overshoot them by a message each.
+ */
+public class OutboundLimits {
+
+    private final long maxQueuedBytes;
+    private final int maxQueuedFrames;
+    private final SlowConsumerPolicy policy;
+    private final ByteBuffer overflowNotice;
+
+    // only open connections, ids are never reused so closed ones would pile up
+    private final ConcurrentHashMap<Integer, AtomicLong> hitsByConnection = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder droppedFrames = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+
+    /**
+     * No caps at all - the queue grows as long as the consumer lags.
+     */
+    public OutboundLimits() {
+        this(Long.MAX_VALUE, Integer.MAX_VALUE, SlowConsumerPolicy.DROP_NEWEST, null);
+    }
+
+    /**
+     * @param maxQueuedBytes most encoded bytes waiting to be written to one connection
+     * @param maxQueuedFrames most messages waiting to be written to one connection
+     * @param policy what to do when a new message would go over a cap
+     * @param overflowNotice already encoded message written before a {@link SlowConsumerPolicy#DISCONNECT}, may be null
+     */
+    public OutboundLimits(long maxQueuedBytes, int maxQueuedFrames, SlowConsumerPolicy policy, byte[] overflowNotice) {
+        if (maxQueuedBytes < 1 || maxQueuedFrames < 1) {
+            throw new IllegalArgumentException("outbound limits must be positive");
+        }
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.maxQueuedFrames = maxQueuedFrames;
+        this.policy = policy;
+        this.overflowNotice = overflowNotice == null ? null : ByteBuffer.wrap(overflowNotice).asReadOnlyBuffer();
+    }
+
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    public int getMaxQueuedFrames() {
+        return maxQueuedFrames;
+    }
+
+    public SlowConsumerPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return true if one more message of this size still fits
+     */
+    public boolean fits(int queuedFrames, long queuedBytes, int messageBytes) {
+        return queuedFrames < maxQueuedFrames && queuedBytes + messageBytes <= maxQueuedBytes;
+    }
+
+    /**
+     * @return a fresh view of the overflow notice, or null if there is none
+     */
+    public ByteBuffer overflowNotice() {
+        return overflowNotice == null ? null : overflowNotice.duplicate();
+    }
+
+    /**
+     * @return how many times each open connection that hit a cap has hit it
+     */
+    public Map<Integer, AtomicLong> getHitsByConnection() {
+        return Collections.unmodifiableMap(hitsByConnection);
+    }
+
+    /**
+     * @return how many times any connection, open or closed, hit a cap
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    public long getDisconnects() {
+        return disconnects.sum();
+    }
+
+    void recordHit(int connectionId) {
+        hitsByConnection.computeIfAbsent(connectionId, id -> new AtomicLong()).incrementAndGet();
+        hits.increment();
+    }
+
+    /**
+     * Called once a connection can no longer queue anything, so it takes no more hits.
+     */
+    void connectionClosed(int connectionId) {
+        hitsByConnection.remove(connectionId);
+    }
+
+    void recordDropped(int frames) {
+        droppedFrames.add(frames);
+    }
+
+    void recordDisconnect() {
+        disconnects.increment();
+    }
+
+}
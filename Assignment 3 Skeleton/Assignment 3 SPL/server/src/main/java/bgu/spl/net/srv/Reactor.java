@@ -6,10 +6,8 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Supplier;
 
 public class Reactor<T> implements Server<T> {
@@ -18,10 +16,11 @@ public class Reactor<T> implements Server<T> {
     private final Supplier<MessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> readerFactory;
     private final ActorThreadPool pool;
-    private Selector selector;
-
-    private Thread selectorThread;
-    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final ReactorConfig config;
+    private final int ioLoops;
+    private SelectorLoop acceptLoop;
+    private SelectorLoop[] loops;
+    private int nextLoop = 0;
 
     private final Connections<T> connections;
     private int connectionIdCounter = 1;
@@ -32,8 +31,19 @@ public class Reactor<T> implements Server<T> {
             Supplier<MessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> readerFactory,
             Connections<T> connections) {  
+        this(new ReactorConfig().setThreads(numThreads), port, protocolFactory, readerFactory, connections);
+    }
+
+    public Reactor(
+            ReactorConfig config,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            Connections<T> connections) {  
                 
-        this.pool = new ActorThreadPool(numThreads);
+        this.pool = new ActorThreadPool(config.getThreads(), config.getMaxTasksPerTurn(), config.getMaxTurnMicros());
+        this.config = config;
+        this.ioLoops = config.getIoLoops();
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.readerFactory = readerFactory;
@@ -42,78 +52,71 @@ public class Reactor<T> implements Server<T> {
 
     @Override
     public void serve() {
-	selectorThread = Thread.currentThread();
-        try (Selector selector = Selector.open();
-                ServerSocketChannel serverSock = ServerSocketChannel.open()) {
-
-            this.selector = selector; //just to be able to close
+        Thread[] ioThreads = new Thread[0];
+        ServerMetrics.getInstance().setPoolQueueDepth(pool::getQueueDepth);
+        ServerMetrics.getInstance().setBufferPool(config.getBufferPool());
+        try (ServerSocketChannel serverSock = ServerSocketChannel.open()) {
+
+            acceptLoop = new SelectorLoop(this); //just to be able to close
+            if (ioLoops == 1) {
+                // single loop mode - the accepting selector also does all the I/O
+                loops = new SelectorLoop[]{acceptLoop};
+            } else {
+                loops = new SelectorLoop[ioLoops];
+                ioThreads = new Thread[ioLoops];
+                for (int i = 0; i < ioLoops; i++) {
+                    loops[i] = new SelectorLoop(this);
+                    ioThreads[i] = new Thread(loops[i], "reactor-io-" + i);
+                    ioThreads[i].start();
+                }
+            }
             
             // serverSock.bind(new InetSocketAddress(port));
             serverSock.bind(new InetSocketAddress("0.0.0.0", port));
             serverSock.configureBlocking(false);
-            serverSock.register(selector, SelectionKey.OP_ACCEPT);
+            acceptLoop.registerAcceptor(serverSock);
             // System.out.println("Server started" + port);
-			System.out.println("Server started on 0.0.0.0:" + port);
-
-            while (!Thread.currentThread().isInterrupted()) {
-
-                selector.select();
-                runSelectionThreadTasks();
-
-                for (SelectionKey key : selector.selectedKeys()) {
-
-                    if (!key.isValid()) {
-                        continue;
-                    } else if (key.isAcceptable()) {
-                        handleAccept(serverSock, selector);
-                    } else {
-                        handleReadWrite(key);
-                    }
-                }
-
-                selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
+			System.out.println("Server started on 0.0.0.0:" + port + " with " + ioLoops + " I/O loop(s)");
 
-            }
+            acceptLoop.run();
 
         } catch (ClosedSelectorException ex) {
             //do nothing - server was requested to be closed
         } catch (IOException ex) {
             //this is an error
             ex.printStackTrace();
+        } finally {
+            closeLoops(ioThreads);
         }
 
         System.out.println("server closed!!!");
         pool.shutdown();
     }
 
-    /*package*/ void updateInterestedOps(SocketChannel chan, int ops) {
-        final SelectionKey key = chan.keyFor(selector);
-        if (Thread.currentThread() == selectorThread) {
-            key.interestOps(ops);
-        } else {
-            selectorTasks.add(() -> {
-                key.interestOps(ops);
-            });
-            selector.wakeup();
-        }
+    /*package*/ BufferPool getBufferPool() {
+        return config.getBufferPool();
     }
 
-
-    private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
+    /*package*/ void handleAccept(ServerSocketChannel serverChan) throws IOException {
         SocketChannel clientChan = serverChan.accept();
+        if (clientChan == null) {
+            return;
+        }
         clientChan.configureBlocking(false);
         int connectionId = connectionIdCounter++;
+        SelectorLoop loop = pickLoop();
 
         // create handler 
         final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
                 readerFactory.get(),
                 protocolFactory.get(),
                 clientChan,
-                this,
+                loop,
                 connectionId,
-                connections);
+                connections,
+                config);
 
-        // register handler 
+        // register handler before the loop can read the client's first frame, so replies to it find the handler
         try {
             Class<?> connectionsClass = connections.getClass();
             java.lang.reflect.Method addConnMethod = 
@@ -122,20 +125,35 @@ public class Reactor<T> implements Server<T> {
         } catch (Exception e) {
             System.out.println("Error registering handler: " + e.getMessage());
             e.printStackTrace();
-        }        
+        }
+
+        // anything sent to the handler before this runs is picked up by registrationOps()
+        loop.register(clientChan, handler);
+    }
+
+    /**
+     * @return true if the calling thread is one of a reactor's selector threads, which must never wait on
+     * anything but their selector
+     */
+    public static boolean isSelectorThread() {
+        return SelectorLoop.onSelectorThread();
+    }
 
-        // register channel 
-        clientChan.register(selector, SelectionKey.OP_READ, handler);
+    /**
+     * Runs the task on the pool as one of the connection's own, after those already queued for it.
+     */
+    /*package*/ void execute(NonBlockingConnectionHandler<?> handler, Runnable task) {
+        pool.submit(handler.getMailbox(), task);
     }
 
-    private void handleReadWrite(SelectionKey key) {
+    /*package*/ void handleReadWrite(SelectionKey key) {
         @SuppressWarnings("unchecked")
         NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
 
         if (key.isReadable()) {
             Runnable task = handler.continueRead();
             if (task != null) {
-                pool.submit(handler, task);
+                pool.submit(handler.getMailbox(), task);
             }
         }
 
@@ -144,15 +162,43 @@ public class Reactor<T> implements Server<T> {
         }
     }
 
-    private void runSelectionThreadTasks() {
-        while (!selectorTasks.isEmpty()) {
-            selectorTasks.remove().run();
+    /**
+     * Least loaded I/O loop, starting the scan round-robin so ties spread evenly.
+     */
+    private SelectorLoop pickLoop() {
+        int start = nextLoop;
+        nextLoop = (nextLoop + 1) % loops.length;
+        SelectorLoop best = loops[start];
+        for (int i = 1; i < loops.length; i++) {
+            SelectorLoop candidate = loops[(start + i) % loops.length];
+            if (candidate.channelCount() < best.channelCount()) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    private void closeLoops(Thread[] ioThreads) {
+        if (loops == null) {
+            return;
+        }
+        for (SelectorLoop loop : loops) {
+            try {
+                loop.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        for (Thread ioThread : ioThreads) {
+            ioThread.interrupt();
         }
     }
 
     @Override
     public void close() throws IOException {
-        selector.close();
+        if (acceptLoop != null) {
+            acceptLoop.close();
+        }
     }
 
 }
@@ -0,0 +1,151 @@
+package bgu.spl.net.srv;
+
+/**
+ * Tuning knobs for a {@link Reactor} server.
+ * Setters return this so a config can be built in a single expression.
+ */
+public class ReactorConfig {
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int ioLoops = 1;
+    private int maxWriteBatchFrames = 64;
+    private int maxWriteBatchBytes = 1 << 18; //256k
+    private int maxTasksPerTurn = 32;
+    private long maxTurnMicros = 500;
+    private boolean inlineCheapMessages = false;
+    private OutboundLimits outboundLimits = new OutboundLimits();
+    private BufferPool bufferPool = new BufferPool();
+
+    /**
+     * @return number of threads available for protocol processing
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    public ReactorConfig setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @return number of selector threads doing network I/O. With 1 the accepting selector also does all
+     * reads and writes, with more a dedicated acceptor hands every new channel to one of the I/O loops.
+     */
+    public int getIoLoops() {
+        return ioLoops;
+    }
+
+    public ReactorConfig setIoLoops(int ioLoops) {
+        if (ioLoops < 1) {
+            throw new IllegalArgumentException("ioLoops must be positive: " + ioLoops);
+        }
+        this.ioLoops = ioLoops;
+        return this;
+    }
+
+    /**
+     * @return most queued frames handed to a single gathering write. 1 writes every frame on its own.
+     */
+    public int getMaxWriteBatchFrames() {
+        return maxWriteBatchFrames;
+    }
+
+    public ReactorConfig setMaxWriteBatchFrames(int maxWriteBatchFrames) {
+        if (maxWriteBatchFrames < 1) {
+            throw new IllegalArgumentException("maxWriteBatchFrames must be positive: " + maxWriteBatchFrames);
+        }
+        this.maxWriteBatchFrames = maxWriteBatchFrames;
+        return this;
+    }
+
+    /**
+     * @return once a write batch holds this many bytes no more frames are added to it.
+     * A single larger frame is still written whole.
+     */
+    public int getMaxWriteBatchBytes() {
+        return maxWriteBatchBytes;
+    }
+
+    public ReactorConfig setMaxWriteBatchBytes(int maxWriteBatchBytes) {
+        if (maxWriteBatchBytes < 1) {
+            throw new IllegalArgumentException("maxWriteBatchBytes must be positive: " + maxWriteBatchBytes);
+        }
+        this.maxWriteBatchBytes = maxWriteBatchBytes;
+        return this;
+    }
+
+    /**
+     * @return most queued tasks of one connection run in a row before the thread moves on to other connections.
+     * 1 gives the thread back after every task.
+     */
+    public int getMaxTasksPerTurn() {
+        return maxTasksPerTurn;
+    }
+
+    public ReactorConfig setMaxTasksPerTurn(int maxTasksPerTurn) {
+        if (maxTasksPerTurn < 1) {
+            throw new IllegalArgumentException("maxTasksPerTurn must be positive: " + maxTasksPerTurn);
+        }
+        this.maxTasksPerTurn = maxTasksPerTurn;
+        return this;
+    }
+
+    /**
+     * @return time after which a connection's run of tasks ends even if maxTasksPerTurn was not reached,
+     * in microseconds. 0 for no time limit.
+     */
+    public long getMaxTurnMicros() {
+        return maxTurnMicros;
+    }
+
+    public ReactorConfig setMaxTurnMicros(long maxTurnMicros) {
+        if (maxTurnMicros < 0) {
+            throw new IllegalArgumentException("maxTurnMicros must not be negative: " + maxTurnMicros);
+        }
+        this.maxTurnMicros = maxTurnMicros;
+        return this;
+    }
+
+    /**
+     * @return true if messages the protocol reports as cheap are processed right on the selector thread
+     * while the connection has no task queued or running, saving the hop to a pool thread.
+     * Everything from the first expensive message on still goes to the pool, in order.
+     */
+    public boolean isInlineCheapMessages() {
+        return inlineCheapMessages;
+    }
+
+    public ReactorConfig setInlineCheapMessages(boolean inlineCheapMessages) {
+        this.inlineCheapMessages = inlineCheapMessages;
+        return this;
+    }
+
+    /**
+     * @return caps on what may be queued for a single slow connection, unlimited by default
+     */
+    public OutboundLimits getOutboundLimits() {
+        return outboundLimits;
+    }
+
+    public ReactorConfig setOutboundLimits(OutboundLimits outboundLimits) {
+        this.outboundLimits = outboundLimits;
+        return this;
+    }
+
+    /**
+     * @return where the connections lease their read buffers and the buffers of the frames they send
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public ReactorConfig setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        return this;
+    }
+
+}
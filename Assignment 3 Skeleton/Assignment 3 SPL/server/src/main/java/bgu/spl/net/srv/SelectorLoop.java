@@ -0,0 +1,203 @@
+package bgu.spl.net.srv;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One selector and the thread that owns it. A {@link Reactor} runs one loop in single-loop mode,
+ * or an accepting loop plus several I/O loops that each serve their own subset of the channels.
+ * <p>
+ * Connections that queued writes from other threads are collected in a list the loop drains once per
+ * select, each connection at most once until the loop got to it, and the selector is woken at most once
+ * per select however many connections asked. A broadcast to many subscribers of one loop costs one wakeup.
+ */
+class SelectorLoop implements Runnable, Closeable {
+
+    private static final ThreadLocal<SelectorLoop> CURRENT = new ThreadLocal<>();
+
+    private final Reactor<?> reactor;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    // connections waiting for OP_WRITE, swapped with drainingWrites so adding to them allocates nothing
+    private ArrayList<NonBlockingConnectionHandler<?>> pendingWrites = new ArrayList<>(); //guarded by writesLock
+    private ArrayList<NonBlockingConnectionHandler<?>> drainingWrites = new ArrayList<>(); //selector thread only
+    private final Object writesLock = new Object();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private final AtomicInteger channels = new AtomicInteger();
+    private volatile Thread selectorThread;
+
+    SelectorLoop(Reactor<?> reactor) throws IOException {
+        this.reactor = reactor;
+        this.selector = Selector.open();
+    }
+
+    @Override
+    public void run() {
+        selectorThread = Thread.currentThread();
+        CURRENT.set(this);
+        // the loop leases every read buffer and releases every written one, so it keeps free ones at hand
+        reactor.getBufferPool().cacheOnThisThread();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+
+                selector.select();
+                // cleared before draining, so whatever is added after the drain wakes the next select
+                wakeupPending.set(false);
+                runSelectionThreadTasks();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+
+                    if (!key.isValid()) {
+                        continue;
+                    } else if (key.isAcceptable()) {
+                        reactor.handleAccept((ServerSocketChannel) key.channel());
+                    } else {
+                        reactor.handleReadWrite(key);
+                    }
+                }
+
+                selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
+
+            }
+        } catch (ClosedSelectorException ex) {
+            //do nothing - loop was requested to be closed
+        } catch (IOException ex) {
+            //this is an error
+            ex.printStackTrace();
+        } finally {
+            reactor.getBufferPool().dropThreadCache();
+            CURRENT.remove();
+        }
+    }
+
+    /**
+     * @return true if the calling thread runs a selector loop
+     */
+    static boolean onSelectorThread() {
+        return CURRENT.get() != null;
+    }
+
+    void registerAcceptor(ServerSocketChannel serverSock) throws ClosedChannelException {
+        serverSock.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Registers a client channel with this loop, from any thread.
+     */
+    void register(SocketChannel chan, NonBlockingConnectionHandler<?> handler) {
+        channels.incrementAndGet();
+        execute(() -> {
+            try {
+                chan.register(selector, handler.registrationOps(), handler);
+            } catch (ClosedChannelException ex) {
+                //the client left before we got to register it
+                handler.close();
+            }
+        });
+    }
+
+    /**
+     * Adds OP_WRITE to the interest of a connection that queued something to write. The connection calls this
+     * only when it was not already waiting, see {@link NonBlockingConnectionHandler#takeWriteRequest()}.
+     */
+    void requestWrite(NonBlockingConnectionHandler<?> handler) {
+        if (Thread.currentThread() == selectorThread) {
+            applyWriteRequest(handler);
+            return;
+        }
+        synchronized (writesLock) {
+            pendingWrites.add(handler);
+        }
+        wakeup();
+    }
+
+    /**
+     * Stops waiting for OP_WRITE on a connection that wrote everything it had, on the selector thread.
+     */
+    void clearWrite(SocketChannel chan) {
+        SelectionKey key = chan.keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOpsAnd(~SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Hands a task of the connection to the reactor's pool, for the loop's thread which must not run it.
+     */
+    void execute(NonBlockingConnectionHandler<?> handler, Runnable task) {
+        reactor.execute(handler, task);
+    }
+
+    void channelClosed() {
+        channels.decrementAndGet();
+    }
+
+    /**
+     * @return number of open channels owned by this loop, used to pick the least loaded loop
+     */
+    int channelCount() {
+        return channels.get();
+    }
+
+    private void execute(Runnable task) {
+        if (Thread.currentThread() == selectorThread) {
+            task.run();
+        } else {
+            selectorTasks.add(task);
+            wakeup();
+        }
+    }
+
+    private void wakeup() {
+        // a select that is already being woken picks up this request as well
+        if (wakeupPending.compareAndSet(false, true)) {
+            ServerMetrics.getInstance().selectorWakeup();
+            selector.wakeup();
+        }
+    }
+
+    void runSelectionThreadTasks() {
+        int drained = 0;
+        while (!selectorTasks.isEmpty()) {
+            selectorTasks.remove().run();
+            drained++;
+        }
+
+        ArrayList<NonBlockingConnectionHandler<?>> writes;
+        synchronized (writesLock) {
+            writes = pendingWrites;
+            pendingWrites = drainingWrites;
+        }
+        drainingWrites = writes;
+        for (int i = 0; i < writes.size(); i++) {
+            applyWriteRequest(writes.get(i));
+        }
+        drained += writes.size();
+        writes.clear();
+
+        ServerMetrics.getInstance().selectorDrained(drained);
+    }
+
+    private void applyWriteRequest(NonBlockingConnectionHandler<?> handler) {
+        SelectionKey key = handler.takeWriteRequest().keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOpsOr(SelectionKey.OP_WRITE);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+    }
+
+}
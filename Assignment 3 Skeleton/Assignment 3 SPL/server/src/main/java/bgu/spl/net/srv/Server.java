@@ -34,6 +34,29 @@ public interface Server<T> extends Closeable {
 
     }
 
+    /**
+     * This function returns a new instance of a thread per client pattern server whose threads are virtual,
+     * so idle clients cost a small heap stack instead of an OS thread
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new virtual thread per client server
+     */
+    public static <T> Server<T> virtualThreadPerClient(
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory) {
+            @Override
+            protected void execute(BlockingConnectionHandler<T> handler) {
+                Thread.startVirtualThread(handler);
+            }
+        };
+
+    }
+
     /**
      * This function returns a new instance of a reactor pattern server
      * @param nthreads Number of threads available for protocol processing
@@ -52,5 +75,44 @@ public interface Server<T> extends Closeable {
         return new Reactor<T>(nthreads, port, protocolFactory, encoderDecoderFactory, connections);
     }
 
+    /**
+     * This function returns a new instance of a reactor pattern server
+     * @param nthreads Number of threads available for protocol processing
+     * @param maxTasksPerTurn Most queued messages of one client processed before its thread serves other clients
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new reactor server
+     */
+    public static <T> Server<T> reactor(
+            int nthreads,
+            int maxTasksPerTurn,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory,
+            Connections<T> connections) {
+        ReactorConfig config = new ReactorConfig().setThreads(nthreads).setMaxTasksPerTurn(maxTasksPerTurn);
+        return new Reactor<T>(config, port, protocolFactory, encoderDecoderFactory, connections);
+    }
+
+    /**
+     * This function returns a new instance of a reactor pattern server
+     * @param config Thread and I/O loop settings of the reactor
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new reactor server
+     */
+    public static <T> Server<T> reactor(
+            ReactorConfig config,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory,
+            Connections<T> connections) {
+        return new Reactor<T>(config, port, protocolFactory, encoderDecoderFactory, connections);
+    }
+
 }
 
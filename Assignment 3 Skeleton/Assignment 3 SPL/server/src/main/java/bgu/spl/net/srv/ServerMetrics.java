@@ -0,0 +1,323 @@
+package bgu.spl.net.srv;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The server's meters, one registry per JVM. Recording only touches counters and histogram buckets that
+ * exist from the start, so it never allocates and is cheap enough for every frame.
+ * Gauges that already live elsewhere (subscriptions, queue depths) are read through suppliers when a
+ * snapshot is taken. Read over JMX (see {@link #registerMBean()}) or as text from {@link #render()}.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    public static final String OBJECT_NAME = "bgu.spl.net:type=ServerMetrics";
+
+    private static final String[] COMMANDS = {
+        "CONNECT", "STOMP", "SEND", "SUBSCRIBE", "UNSUBSCRIBE", "BEGIN", "COMMIT", "ABORT", "ACK", "NACK", "DISCONNECT"
+    };
+    private static final int OTHER = COMMANDS.length;
+
+    private final LongAdder[] commandCounts = new LongAdder[COMMANDS.length + 1];
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final LongAdder selectorWakeups = new LongAdder();
+    private final LongAdder selectorSelects = new LongAdder();
+    private final LongAdder selectorTasksDrained = new LongAdder();
+    private final AtomicLong selectorMaxTasksPerSelect = new AtomicLong();
+    private final LongAdder parallelFanOuts = new LongAdder();
+    private final LatencyHistogram poolWait = new LatencyHistogram();
+    private final LatencyHistogram sqlRoundTrip = new LatencyHistogram();
+
+    private volatile IntSupplier poolQueueDepth = () -> 0;
+    private volatile IntSupplier fanOutPending = () -> 0;
+    private volatile Supplier<Map<String, Integer>> subscriptionsPerChannel = Collections::emptyMap;
+    private volatile Supplier<Map<Integer, Integer>> writeQueueDepths = Collections::emptyMap;
+    private volatile BufferPool bufferPool = new BufferPool();
+    private volatile Supplier<Map<String, Long>> history = Collections::emptyMap;
+    private volatile Supplier<Map<String, Long>> auditLog = Collections::emptyMap;
+
+    ServerMetrics() {
+        for (int i = 0; i < commandCounts.length; i++) {
+            commandCounts[i] = new LongAdder();
+        }
+    }
+
+    public static ServerMetrics getInstance() {
+        return Instance.instance;
+    }
+
+    private static class Instance {
+        static final ServerMetrics instance = new ServerMetrics();
+    }
+
+    /**
+     * Makes the registry readable over JMX. Registering twice is harmless.
+     */
+    public void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!server.isRegistered(name)) {
+            server.registerMBean(this, name);
+        }
+    }
+
+    // recording
+
+    public void command(String command) {
+        int i = 0;
+        while (i < COMMANDS.length && !COMMANDS[i].equals(command)) {
+            i++;
+        }
+        commandCounts[i].increment();
+    }
+
+    public void bytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void bytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public void connectionOpened() {
+        activeConnections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    public void selectorWakeup() {
+        selectorWakeups.increment();
+    }
+
+    /**
+     * @param tasks tasks and write requests a selector loop ran after one select
+     */
+    public void selectorDrained(int tasks) {
+        selectorSelects.increment();
+        selectorTasksDrained.add(tasks);
+        if (tasks > selectorMaxTasksPerSelect.get()) {
+            selectorMaxTasksPerSelect.accumulateAndGet(tasks, Math::max);
+        }
+    }
+
+    public void parallelFanOut() {
+        parallelFanOuts.increment();
+    }
+
+    public LatencyHistogram poolWait() {
+        return poolWait;
+    }
+
+    public LatencyHistogram sqlRoundTrip() {
+        return sqlRoundTrip;
+    }
+
+    // gauge sources, the last one set wins
+
+    public void setPoolQueueDepth(IntSupplier poolQueueDepth) {
+        this.poolQueueDepth = poolQueueDepth;
+    }
+
+    public void setFanOutPending(IntSupplier fanOutPending) {
+        this.fanOutPending = fanOutPending;
+    }
+
+    public void setSubscriptionsPerChannel(Supplier<Map<String, Integer>> subscriptionsPerChannel) {
+        this.subscriptionsPerChannel = subscriptionsPerChannel;
+    }
+
+    public void setWriteQueueDepths(Supplier<Map<Integer, Integer>> writeQueueDepths) {
+        this.writeQueueDepths = writeQueueDepths;
+    }
+
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public void setHistory(Supplier<Map<String, Long>> history) {
+        this.history = history;
+    }
+
+    public void setAuditLog(Supplier<Map<String, Long>> auditLog) {
+        this.auditLog = auditLog;
+    }
+
+    // reading
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int i = 0; i < COMMANDS.length; i++) {
+            counts.put(COMMANDS[i], commandCounts[i].sum());
+        }
+        counts.put("OTHER", commandCounts[OTHER].sum());
+        return counts;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    @Override
+    public Map<String, Integer> getSubscriptionsPerChannel() {
+        return new TreeMap<>(subscriptionsPerChannel.get());
+    }
+
+    @Override
+    public int getPoolQueueDepth() {
+        return poolQueueDepth.getAsInt();
+    }
+
+    @Override
+    public Map<String, Long> getPoolWaitNanos() {
+        return summary(poolWait);
+    }
+
+    @Override
+    public Map<Integer, Integer> getWriteQueueDepths() {
+        return new TreeMap<>(writeQueueDepths.get());
+    }
+
+    @Override
+    public long getParallelFanOuts() {
+        return parallelFanOuts.sum();
+    }
+
+    @Override
+    public int getFanOutPending() {
+        return fanOutPending.getAsInt();
+    }
+
+    @Override
+    public long getSelectorWakeups() {
+        return selectorWakeups.sum();
+    }
+
+    @Override
+    public long getSelectorSelects() {
+        return selectorSelects.sum();
+    }
+
+    @Override
+    public long getSelectorTasksDrained() {
+        return selectorTasksDrained.sum();
+    }
+
+    @Override
+    public long getSelectorMaxTasksPerSelect() {
+        return selectorMaxTasksPerSelect.get();
+    }
+
+    @Override
+    public Map<String, Long> getHistory() {
+        return history.get();
+    }
+
+    @Override
+    public Map<String, Long> getAuditLog() {
+        return auditLog.get();
+    }
+
+    @Override
+    public Map<String, Long> getBufferPool() {
+        BufferPool pool = bufferPool;
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("hits", pool.getHits());
+        stats.put("misses", pool.getMisses());
+        stats.put("outstanding", pool.getOutstanding());
+        stats.put("freed", pool.getFreed());
+        stats.put("retainedBytes", pool.getRetainedBytes());
+        return stats;
+    }
+
+    @Override
+    public Map<String, Long> getSqlRoundTripNanos() {
+        return summary(sqlRoundTrip);
+    }
+
+    /**
+     * @return every meter as a line of "name value", names in the Prometheus text style
+     */
+    public String render() {
+        StringBuilder sb = new StringBuilder(1024);
+        for (Map.Entry<String, Long> count : getCommandCounts().entrySet()) {
+            sb.append("stomp_frames_total{command=\"").append(count.getKey()).append("\"} ").append(count.getValue()).append('\n');
+        }
+        sb.append("bytes_in_total ").append(getBytesIn()).append('\n');
+        sb.append("bytes_out_total ").append(getBytesOut()).append('\n');
+        sb.append("connections_active ").append(getActiveConnections()).append('\n');
+        for (Map.Entry<String, Integer> channel : getSubscriptionsPerChannel().entrySet()) {
+            sb.append("channel_subscriptions{channel=\"").append(channel.getKey()).append("\"} ").append(channel.getValue()).append('\n');
+        }
+        sb.append("pool_queue_depth ").append(getPoolQueueDepth()).append('\n');
+        appendLatency(sb, "pool_wait_nanos", poolWait);
+        for (Map.Entry<Integer, Integer> connection : getWriteQueueDepths().entrySet()) {
+            sb.append("write_queue_frames{connection=\"").append(connection.getKey()).append("\"} ").append(connection.getValue()).append('\n');
+        }
+        sb.append("fan_out_parallel_total ").append(getParallelFanOuts()).append('\n');
+        sb.append("fan_out_pending ").append(getFanOutPending()).append('\n');
+        sb.append("selector_wakeups_total ").append(getSelectorWakeups()).append('\n');
+        sb.append("selector_selects_total ").append(getSelectorSelects()).append('\n');
+        sb.append("selector_tasks_drained_total ").append(getSelectorTasksDrained()).append('\n');
+        sb.append("selector_tasks_per_select_max ").append(getSelectorMaxTasksPerSelect()).append('\n');
+        for (Map.Entry<String, Long> stat : getBufferPool().entrySet()) {
+            sb.append("buffer_pool{stat=\"").append(stat.getKey()).append("\"} ").append(stat.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Long> stat : getHistory().entrySet()) {
+            sb.append("history{stat=\"").append(stat.getKey()).append("\"} ").append(stat.getValue()).append('\n');
+        }
+        appendLatency(sb, "sql_round_trip_nanos", sqlRoundTrip);
+        for (Map.Entry<String, Long> stat : getAuditLog().entrySet()) {
+            sb.append("audit_log{stat=\"").append(stat.getKey()).append("\"} ").append(stat.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void appendLatency(StringBuilder sb, String name, LatencyHistogram histogram) {
+        for (Map.Entry<String, Long> value : summary(histogram).entrySet()) {
+            sb.append(name);
+            if (!value.getKey().equals("count")) {
+                sb.append("{quantile=\"").append(value.getKey()).append("\"}");
+            } else {
+                sb.append("_count");
+            }
+            sb.append(' ').append(value.getValue()).append('\n');
+        }
+    }
+
+    private static Map<String, Long> summary(LatencyHistogram histogram) {
+        Map<String, Long> summary = new LinkedHashMap<>();
+        summary.put("count", histogram.getCount());
+        summary.put("p50", histogram.percentileNanos(50));
+        summary.put("p99", histogram.percentileNanos(99));
+        summary.put("p999", histogram.percentileNanos(99.9));
+        summary.put("max", histogram.getMaxNanos());
+        return summary;
+    }
+}
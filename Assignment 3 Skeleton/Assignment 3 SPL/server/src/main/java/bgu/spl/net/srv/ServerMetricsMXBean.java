@@ -0,0 +1,91 @@
+package bgu.spl.net.srv;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link ServerMetrics}, registered as {@value ServerMetrics#OBJECT_NAME}.
+ * Latencies are maps of count, p50, p99, p999 and max, in nanoseconds.
+ */
+public interface ServerMetricsMXBean {
+
+    /**
+     * @return frames received per command, OTHER for commands the server does not know
+     */
+    Map<String, Long> getCommandCounts();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    int getActiveConnections();
+
+    /**
+     * @return subscriptions per channel, channels without subscribers left out
+     */
+    Map<String, Integer> getSubscriptionsPerChannel();
+
+    /**
+     * @return connections waiting for a thread of the reactor's actor pool
+     */
+    int getPoolQueueDepth();
+
+    /**
+     * @return how long a connection with tasks waited for a thread of the actor pool
+     */
+    Map<String, Long> getPoolWaitNanos();
+
+    /**
+     * @return frames queued for writing per connection, connections with nothing queued left out
+     */
+    Map<Integer, Integer> getWriteQueueDepths();
+
+    /**
+     * @return broadcasts handed to the parallel fan-out instead of delivered by their sender
+     */
+    long getParallelFanOuts();
+
+    /**
+     * @return broadcasts waiting in the parallel fan-out's channel lanes
+     */
+    int getFanOutPending();
+
+    /**
+     * @return times another thread woke a reactor selector, at most once per select
+     */
+    long getSelectorWakeups();
+
+    /**
+     * @return selects of all the reactor's selector loops
+     */
+    long getSelectorSelects();
+
+    /**
+     * @return tasks and write requests the selector loops ran after their selects
+     */
+    long getSelectorTasksDrained();
+
+    /**
+     * @return most tasks and write requests a single select drained
+     */
+    long getSelectorMaxTasksPerSelect();
+
+    /**
+     * @return hits, misses, outstanding, freed and retainedBytes of the reactor's buffer pool
+     */
+    Map<String, Long> getBufferPool();
+
+    /**
+     * @return channels with a retained history, bytes of messages retained, and channels evicted
+     */
+    Map<String, Long> getHistory();
+
+    /**
+     * @return time from writing an SQL request to reading its response
+     */
+    Map<String, Long> getSqlRoundTripNanos();
+
+    /**
+     * @return audit records waiting to be written, and the count, latency and failures of their flushes
+     */
+    Map<String, Long> getAuditLog();
+}
@@ -0,0 +1,105 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One encoded message in a pooled direct buffer, written to every subscriber of a broadcast without a copy
+ * per subscriber. Whoever holds the frame - the broadcaster, every connection that queued it - holds a
+ * reference, and the last {@link #release()} gives it back to its {@link BufferPool}.
+ * <p>
+ * A connection writes the frame through a view with its own position, taken just before the write and
+ * given back after it. The frame keeps the views it handed out for its next use, so once the pool is warm
+ * sharing a frame allocates nothing.
+ */
+public final class SharedFrame {
+
+    private static final int MAX_KEPT_VIEWS = 64;
+
+    private final BufferPool pool;
+    private final ByteBuffer data; // written once per use, before the frame is shared, then only read through views
+    private final int sizeClass;
+    private final AtomicInteger references = new AtomicInteger();
+    private final ArrayDeque<ByteBuffer> views = new ArrayDeque<>(); // free views, guarded by itself
+    private int size;
+
+    SharedFrame(BufferPool pool, ByteBuffer data, int sizeClass) {
+        this.pool = pool;
+        this.data = data;
+        this.sizeClass = sizeClass;
+    }
+
+    /**
+     * Copies the encoded bytes in, leaving the source's position alone, and takes the first reference.
+     */
+    void fill(ByteBuffer encoded) {
+        size = encoded.remaining();
+        data.clear();
+        data.put(0, encoded, encoded.position(), size);
+        references.set(1);
+    }
+
+    int sizeClass() {
+        return sizeClass;
+    }
+
+    /**
+     * @return bytes of the encoded message
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds a reference, for a holder that already has one or got the frame from one that does.
+     */
+    public void retain() {
+        references.incrementAndGet();
+    }
+
+    /**
+     * Drops a reference, the last one returns the frame to the pool.
+     */
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            pool.recycle(this);
+        }
+    }
+
+    /**
+     * @return a read-only view of the message, positioned at its start, to give back with {@link #release(ByteBuffer)}
+     */
+    public ByteBuffer view() {
+        ByteBuffer view;
+        synchronized (views) {
+            view = views.pollLast();
+        }
+        if (view == null) {
+            view = data.asReadOnlyBuffer();
+        }
+        view.limit(size).position(0);
+        return view;
+    }
+
+    /**
+     * Gives back a view taken from this frame, then drops the reference of its holder.
+     */
+    public void release(ByteBuffer view) {
+        synchronized (views) {
+            if (views.size() < MAX_KEPT_VIEWS) {
+                views.addLast(view);
+            }
+        }
+        release();
+    }
+
+    /**
+     * @return the message in a heap buffer of its own, for a connection that can not hold a reference
+     */
+    public ByteBuffer copy() {
+        byte[] bytes = new byte[size];
+        data.get(0, bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+}
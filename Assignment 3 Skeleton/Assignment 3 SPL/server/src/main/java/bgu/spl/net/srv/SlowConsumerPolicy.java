@@ -0,0 +1,13 @@
+package bgu.spl.net.srv;
+
+/**
+ * What a connection does when a new outbound message would exceed its {@link OutboundLimits}.
+ */
+public enum SlowConsumerPolicy {
+    /** discard the queued backlog, send the overflow notice (if any) and close the connection */
+    DISCONNECT,
+    /** discard the oldest queued messages until the new one fits */
+    DROP_OLDEST,
+    /** discard the new message */
+    DROP_NEWEST
+}